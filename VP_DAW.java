@@ -1,32 +1,100 @@
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import java.util.*;
 import javax.sound.midi.*;
 import javax.sound.sampled.*;
 import java.io.*;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 
-public class VP_DAW extends Frame implements MouseListener, ActionListener {
+public class VP_DAW extends Frame implements MouseListener, MouseMotionListener, ActionListener {
 
     private Label noteLabel;
-    private Rectangle[] whiteKeys;
-    private Rectangle[] blackKeys;
-    private Map<Rectangle, Integer> keyToMidi; 
+    private KeyboardLayout keyboard;
+    private KeyHitMap keyHitMap;
+    private int heldNote = -1;   // note held down by the mouse, or -1
     private Synthesizer synthesizer;
-    private MidiChannel channel;
+    private MidiRouter router;
+    private NoteInput noteInput;
+    private List<MidiDevice> midiInputs = Collections.emptyList();
+    private int currentTrack = 0;
+    private final NoteScheduler noteScheduler = new NoteScheduler();
+    private final JobQueue jobs = new JobQueue(JOB_QUEUE_CAPACITY);
+    private final EdtMonitor edtMonitor = new EdtMonitor();
+    private final RecordingCatalog catalog = new RecordingCatalog(Paths.get("").toAbsolutePath());
+    private final PeakCache peakCache = new PeakCache(PEAK_CACHE_BYTES);
+    private WaveformView waveformView;
     
     // Recording functionality
-    private boolean isRecording = false;
-    private ArrayList<MidiEvent> recordedEvents;
-    private long recordStartTime;
+    private volatile boolean isRecording = false;
+    private volatile EventSource recordedEvents;
+    private final SessionClock recordClock = new SessionClock(SAMPLE_RATE);
+    private boolean quantizeOnSave = false;
+    private int recordTempo;
+    private PlaybackEngine playback;
+    private LoopEngine loopEngine;
+    private boolean looping;
+    private boolean clickOn;
+    private final WavPlayer wavPlayer = new WavPlayer(noteScheduler);
     private Button recordButton;
     private Button playButton;
     private Button tempoButton;
+    private Button quantizeButton;
+    private Button trackButton;
+    private Button statsButton;
+    private Button effectsButton;
+    private Button formatButton;
+    private int saveFormat = AudioFiles.FORMAT_PCM;
+    private Button loopButton;
+    private Button clickButton;
+    private boolean effectsOn;
+    private LiveMonitor liveMonitor;
+    private String liveMonitorProblem = "no synthesizer"; // why live effects are off, if they are
+    private MetricsOverlay metricsOverlay;
     private int tempo = 120; // Default tempo (BPM)
     
     // Saved recordings
@@ -42,15 +110,53 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
     private static final int WHITE_KEY_HEIGHT = 200;
     private static final int BLACK_KEY_WIDTH = 25;
     private static final int BLACK_KEY_HEIGHT = 120;
+    
+    // Export settings
+    private static final int SAMPLE_RATE = 44100;
+    private static final int RENDER_BLOCK_FRAMES = 4096;
+    private static final int QUANTIZE_STEPS_PER_BEAT = 4; // 1/16 notes
+    private static final int DEFAULT_VELOCITY = 100;
+    private static final int BEATS_PER_BAR = 4;
+    private static final int LOOP_BARS = 4;
+    
+    // One track per MIDI channel; channel 9 is the General MIDI drum kit
+    private static final InstrumentTrack[] TRACKS = {
+        new InstrumentTrack("Piano", 0, 0, 0),
+        new InstrumentTrack("E. Piano", 1, 0, 4),
+        new InstrumentTrack("Harpsichord", 2, 0, 6),
+        new InstrumentTrack("Vibraphone", 3, 0, 11),
+        new InstrumentTrack("Organ", 4, 0, 19),
+        new InstrumentTrack("Guitar", 5, 0, 24),
+        new InstrumentTrack("Bass", 6, 0, 33),
+        new InstrumentTrack("Violin", 7, 0, 40),
+        new InstrumentTrack("Strings", 8, 0, 48),
+        new InstrumentTrack("Drums", 9, 0, 0),
+        new InstrumentTrack("Choir", 10, 0, 52),
+        new InstrumentTrack("Trumpet", 11, 0, 56),
+        new InstrumentTrack("Sax", 12, 0, 65),
+        new InstrumentTrack("Flute", 13, 0, 73),
+        new InstrumentTrack("Synth Lead", 14, 0, 80),
+        new InstrumentTrack("Synth Pad", 15, 0, 88),
+    };
+    private static final int JOB_QUEUE_CAPACITY = 16;
+    private static final long JOB_SHUTDOWN_TIMEOUT_MS = 30_000;
+    private static final long PEAK_CACHE_BYTES = 4L << 20;
+    private static final boolean PARALLEL_EXPORT = Runtime.getRuntime().availableProcessors() > 1;
+    
+    // Hot-path metrics, looked up once so recording never allocates
+    private static final Metrics.Counter EXPORT_FILES = Metrics.REGISTRY.counter("export.files");
+    private static final Metrics.Counter EXPORT_FRAMES = Metrics.REGISTRY.counter("export.frames");
+    private static final LatencyHistogram EXPORT_MILLIS = Metrics.REGISTRY.histogram("export.duration_ms");
+    private static final LatencyHistogram EXPORT_SPEED = Metrics.REGISTRY.histogram("export.realtime_x");
 
     // MIDI template for one octave
     private static final int[] WHITE_NOTES = {0, 2, 4, 5, 7, 9, 11};
     private static final int[] BLACK_NOTES = {1, 3, 6, 8, 10};
     
     // UI Colors
-    private final Color BACKGROUND_COLOR = new Color(0x3f, 0x13, 0x70); // Purple #3f1370
-    private final Color BUTTON_COLOR = new Color(0x9b, 0x59, 0xb6); // Light purple
-    private final Color TEXT_COLOR = Color.WHITE;
+    private static final Color BACKGROUND_COLOR = new Color(0x3f, 0x13, 0x70); // Purple #3f1370
+    private static final Color BUTTON_COLOR = new Color(0x9b, 0x59, 0xb6); // Light purple
+    private static final Color TEXT_COLOR = Color.WHITE;
     
     private PianoCanvas canvas;
 
@@ -73,10 +179,11 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
         // Main panel with piano
         Panel centerPanel = new Panel(new BorderLayout());
         centerPanel.setBackground(BACKGROUND_COLOR);
-        canvas = new PianoCanvas();
+        canvas = new PianoCanvas(keyboard);
         centerPanel.add(canvas, BorderLayout.CENTER);
         add(centerPanel, BorderLayout.CENTER);
         canvas.addMouseListener(this);
+        canvas.addMouseMotionListener(this);
 
         // Control panel at bottom
         Panel controlPanel = new Panel(new FlowLayout(FlowLayout.CENTER, 10, 10));
@@ -85,10 +192,24 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
         recordButton = createButton("⏺ Record");
         playButton = createButton("▶ Play");
         tempoButton = createButton("Tempo: " + tempo + " BPM");
+        quantizeButton = createButton("Grid: Off");
+        trackButton = createButton("Track: " + TRACKS[currentTrack].name);
+        statsButton = createButton("Stats");
+        effectsButton = createButton("FX: Off");
+        formatButton = createButton("Save: WAV");
+        loopButton = createButton("Loop: Off");
+        clickButton = createButton("Click: Off");
         
         controlPanel.add(recordButton);
         controlPanel.add(playButton);
         controlPanel.add(tempoButton);
+        controlPanel.add(loopButton);
+        controlPanel.add(clickButton);
+        controlPanel.add(quantizeButton);
+        controlPanel.add(trackButton);
+        controlPanel.add(effectsButton);
+        controlPanel.add(formatButton);
+        controlPanel.add(statsButton);
         
         add(controlPanel, BorderLayout.SOUTH);
         
@@ -108,6 +229,7 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
         recordingsList = new java.awt.List(10);
         recordingsList.setBackground(new Color(0x55, 0x33, 0x77));
         recordingsList.setForeground(TEXT_COLOR);
+        recordingsList.addItemListener(e -> showRecordingInfo());
         recordingsPanel.add(recordingsList, BorderLayout.CENTER);
         
         // Recording control buttons
@@ -124,23 +246,107 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
         recordingControls.add(deleteButton);
         recordingControls.add(downloadButton);
         
-        recordingsPanel.add(recordingControls, BorderLayout.SOUTH);
+        // Waveform of the selected recording above its buttons
+        waveformView = new WaveformView();
+        Panel selectionPanel = new Panel(new BorderLayout(5, 5));
+        selectionPanel.setBackground(BACKGROUND_COLOR);
+        selectionPanel.add(waveformView, BorderLayout.CENTER);
+        selectionPanel.add(recordingControls, BorderLayout.SOUTH);
+        recordingsPanel.add(selectionPanel, BorderLayout.SOUTH);
         
         add(recordingsPanel, BorderLayout.EAST);
 
         // MIDI setup
         try {
             synthesizer = MidiSystem.getSynthesizer();
-            synthesizer.open();
-            channel = synthesizer.getChannels()[0];
+            // Route live output through our own line so effects can be monitored
+            liveMonitor = LiveMonitor.open(synthesizer, SAMPLE_RATE);
+            if (liveMonitor == null) {
+                synthesizer.open();
+                String reason = SynthRenderer.getUnavailableReason();
+                liveMonitorProblem = reason != null ? reason : "no audio output line for the monitor";
+                noteLabel.setText("Live FX monitoring unavailable: " + liveMonitorProblem);
+            }
+            router = new MidiRouter(synthesizer.getChannels());
+            for (InstrumentTrack track : TRACKS) {
+                router.selectInstrument(track.channel, track.bank, track.program);
+            }
+            playback = new PlaybackEngine(router, canvas::setNoteActive, noteScheduler);
+            noteInput = new NoteInput(router, this::showNote, recordClock);
+            noteInput.setChannel(TRACKS[currentTrack].channel);
+            canvas.addKeyListener(new KeyboardInput(noteInput, 48));
+            loopEngine = new LoopEngine(synthesizer, recordClock, noteScheduler, SAMPLE_RATE);
+            Metrics.REGISTRY.gauge("midi.events", () -> {
+                long total = 0;
+                for (int channel = 0; channel < MidiRouter.CHANNELS; channel++) total += router.getEventCount(channel);
+                return total;
+            });
+            // One rate per track channel, measured between snapshots
+            for (InstrumentTrack track : TRACKS) {
+                int channel = track.channel;
+                Metrics.REGISTRY.gauge("midi.ch" + (channel + 1) + ".events_per_s", 
+                        () -> Math.round(router.getEventRate(channel)));
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
+        Metrics.REGISTRY.gauge("jobs.pending", jobs::getPendingCount);
+        Metrics.REGISTRY.gauge("heap.used_bytes", 
+                () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+
+        // Fill the recordings list from the persistent catalog in the background
+        catalog.start(new RecordingCatalog.Listener() {
+            public void added(List<RecordingCatalog.Entry> entries) {
+                EventQueue.invokeLater(() -> {
+                    for (RecordingCatalog.Entry entry : entries) {
+                        if (!savedRecordings.contains(entry.name)) {
+                            savedRecordings.add(entry.name);
+                            recordingsList.add(entry.name);
+                        }
+                    }
+                });
+            }
+            
+            public void removed(String name) {
+                EventQueue.invokeLater(() -> {
+                    int index = savedRecordings.indexOf(name);
+                    if (index >= 0) {
+                        savedRecordings.remove(index);
+                        recordingsList.remove(index);
+                    }
+                });
+            }
+        });
+
+        // External controllers feed the same pipeline as the mouse and keyboard
+        if (noteInput != null) {
+            MidiInput midiIn = new MidiInput(noteInput);
+            submitJob("Connecting MIDI inputs", progress -> MidiInput.connectAll(midiIn), devices -> {
+                midiInputs = devices;
+                if (!devices.isEmpty()) noteLabel.setText(devices.size() + " MIDI input(s) connected");
+            }, "Error connecting MIDI inputs");
+        }
 
         // Close on exit
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
+                catalog.stop();
+                for (MidiDevice device : midiInputs) device.close();
+                jobs.shutdown(JOB_SHUTDOWN_TIMEOUT_MS);
+                edtMonitor.shutdown();
+                if (loopEngine != null) loopEngine.stop();
+                if (playback != null) playback.shutdown();
+                wavPlayer.close();
+                noteScheduler.shutdown();
+                if (liveMonitor != null) {
+                    try {
+                        liveMonitor.close();
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
                 if (synthesizer != null) synthesizer.close();
+                if (metricsOverlay != null) metricsOverlay.dispose();
                 dispose();
             }
         });
@@ -154,54 +360,151 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
         button.setForeground(TEXT_COLOR);
         button.setFont(new Font("Arial", Font.BOLD, 12));
         button.addActionListener(this);
+        button.setFocusable(false); // keep keyboard focus on the piano
         return button;
     }
     
     private void initializePianoKeys() {
-        whiteKeys = new Rectangle[7 * OCTAVES];
-        blackKeys = new Rectangle[5 * OCTAVES];
-        keyToMidi = new HashMap<>();
-
-        int baseNote = 48; // Start at C3 (MIDI 48)
-
-        for (int o = 0; o < OCTAVES; o++) {
-            int whiteOffset = o * 7;
-            int blackOffset = o * 5;
+        keyboard = new KeyboardLayout();
+        keyHitMap = new KeyHitMap(keyboard.whiteKeys, keyboard.whiteKeyNotes, keyboard.blackKeys, keyboard.blackKeyNotes);
+    }
 
-            // White keys
-            for (int i = 0; i < 7; i++) {
-                int x = (whiteOffset + i) * WHITE_KEY_WIDTH;
-                whiteKeys[whiteOffset + i] = new Rectangle(x, 0, WHITE_KEY_WIDTH, WHITE_KEY_HEIGHT);
-                int midiNote = baseNote + o * 12 + WHITE_NOTES[i];
-                keyToMidi.put(whiteKeys[whiteOffset + i], midiNote);
+    // Canvas
+    // The keyboard is pre-rendered once in its idle and highlighted states. Note changes
+    // only mark keys dirty; one coalesced pass per event-queue turn copies those keys from
+    // the matching image into the back buffer and repaints just their columns.
+    static class PianoCanvas extends Canvas {
+        private final int width = WHITE_KEY_WIDTH * 7 * OCTAVES;
+        private final int height = WHITE_KEY_HEIGHT + 50;
+        private final Color WHITE_KEY_LIT = new Color(0xd7, 0xbd, 0xe2);
+        
+        private BufferedImage idle;
+        private BufferedImage lit;
+        private BufferedImage frame;
+        private Graphics2D frameGraphics;
+        
+        // Guarded by dirty
+        private final boolean[] active = new boolean[128];
+        private final BitSet dirty = new BitSet(128);
+        private boolean flushPending;
+        
+        private final Rectangle[] whiteKeys;
+        private final Rectangle[] blackKeys;
+        private final int[] blackKeyNotes;
+        private final int[] noteToWhiteKey;
+        private final int[] noteToBlackKey;
+        
+        public PianoCanvas(KeyboardLayout keyboard) {
+            whiteKeys = keyboard.whiteKeys;
+            blackKeys = keyboard.blackKeys;
+            blackKeyNotes = keyboard.blackKeyNotes;
+            noteToWhiteKey = keyboard.noteToWhiteKey;
+            noteToBlackKey = keyboard.noteToBlackKey;
+            setPreferredSize(new Dimension(width, height));
+        }
+        
+        // Safe to call from any thread
+        public void setNoteActive(int note, boolean on) {
+            if (markNote(note, on)) EventQueue.invokeLater(this::flush);
+        }
+        
+        // Records the key state; true if no flush is pending yet and one must be scheduled
+        private boolean markNote(int note, boolean on) {
+            if (note < 0 || note >= active.length) return false;
+            synchronized (dirty) {
+                if (active[note] == on) return false;
+                active[note] = on;
+                dirty.set(note);
+                if (flushPending) return false;
+                flushPending = true;
+                return true;
             }
-
-            // Black keys (C#, D#, F#, G#, A#)
-            int blackIndex = 0;
-            for (int i = 0; i < 7; i++) {
-                if (i != 2 && i != 6) { 
-                    int x = (whiteOffset + i) * WHITE_KEY_WIDTH + (WHITE_KEY_WIDTH - BLACK_KEY_WIDTH / 2);
-                    blackKeys[blackOffset + blackIndex] = new Rectangle(x, 0, BLACK_KEY_WIDTH, BLACK_KEY_HEIGHT);
-                    int midiNote = baseNote + o * 12 + BLACK_NOTES[blackIndex];
-                    keyToMidi.put(blackKeys[blackOffset + blackIndex], midiNote);
-                    blackIndex++;
+        }
+        
+        @Override
+        public void update(Graphics g) {
+            // Every pixel comes from the back buffer, so skip the background clear
+            paint(g);
+        }
+        
+        public void paint(Graphics g) {
+            ensureImages();
+            g.drawImage(frame, 0, 0, null);
+            
+            // Clear whatever the layout gives us beyond the keyboard
+            g.setColor(getBackground());
+            if (getWidth() > width) g.fillRect(width, 0, getWidth() - width, getHeight());
+            if (getHeight() > height) g.fillRect(0, height, width, getHeight() - height);
+        }
+        
+        private void flush() {
+            ensureImages();
+            int minX = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE;
+            synchronized (dirty) {
+                for (int note = dirty.nextSetBit(0); note >= 0; note = dirty.nextSetBit(note + 1)) {
+                    Rectangle r = drawKey(note);
+                    if (r != null) {
+                        minX = Math.min(minX, r.x);
+                        maxX = Math.max(maxX, r.x + r.width);
+                    }
                 }
+                dirty.clear();
+                flushPending = false;
             }
+            if (minX < maxX) repaint(minX, 0, maxX - minX, height);
         }
-    }
-
-    // Canvas
-    class PianoCanvas extends Canvas {
-        public PianoCanvas() {
-            setPreferredSize(new Dimension(WHITE_KEY_WIDTH * 7 * OCTAVES, WHITE_KEY_HEIGHT + 50));
+        
+        // Copies one key in its current state into the back buffer; caller holds dirty
+        private Rectangle drawKey(int note) {
+            if (noteToWhiteKey[note] >= 0) {
+                Rectangle r = whiteKeys[noteToWhiteKey[note]];
+                blit(r, active[note]);
+                // Black keys overlapping this white key keep their own state
+                for (int i = 0; i < blackKeys.length; i++) {
+                    Rectangle black = blackKeys[i];
+                    if (black != null && black.intersects(r)) {
+                        blit(black.intersection(r), active[blackKeyNotes[i]]);
+                    }
+                }
+                return r;
+            }
+            if (noteToBlackKey[note] >= 0) {
+                Rectangle r = blackKeys[noteToBlackKey[note]];
+                blit(r, active[note]);
+                return r;
+            }
+            return null;
         }
         
-        public void paint(Graphics g) {
-            Graphics2D g2 = (Graphics2D) g;
+        private void blit(Rectangle r, boolean on) {
+            frameGraphics.setClip(r.x, r.y, r.width, r.height);
+            frameGraphics.drawImage(on ? lit : idle, 0, 0, null);
+        }
+        
+        private void ensureImages() {
+            if (frame != null) return;
+            idle = renderKeyboard(Color.WHITE, Color.BLACK);
+            lit = renderKeyboard(WHITE_KEY_LIT, BUTTON_COLOR);
+            frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            frameGraphics = frame.createGraphics();
+            frameGraphics.drawImage(idle, 0, 0, null);
+            synchronized (dirty) {
+                for (int note = 0; note < active.length; note++) {
+                    if (active[note]) drawKey(note);
+                }
+            }
+        }
+        
+        private BufferedImage renderKeyboard(Color whiteTop, Color blackColor) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2 = image.createGraphics();
+            g2.setColor(getBackground() != null ? getBackground() : BACKGROUND_COLOR);
+            g2.fillRect(0, 0, width, height);
 
             // White keys
             for (Rectangle r : whiteKeys) {
-                GradientPaint gp = new GradientPaint(r.x, 0, Color.WHITE, r.x, WHITE_KEY_HEIGHT, Color.LIGHT_GRAY);
+                GradientPaint gp = new GradientPaint(r.x, 0, whiteTop, r.x, WHITE_KEY_HEIGHT, Color.LIGHT_GRAY);
                 g2.setPaint(gp);
                 g2.fill(r);
                 g2.setColor(Color.BLACK);
@@ -211,10 +514,52 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
             // Black keys
             for (Rectangle r : blackKeys) {
                 if (r != null) {
-                    g2.setColor(Color.BLACK);
+                    g2.setColor(blackColor);
                     g2.fillRect(r.x, r.y, r.width, r.height);
                 }
             }
+            g2.dispose();
+            return image;
+        }
+    }
+    
+    // Waveform preview drawn from a peak summary, one min/max line per pixel column
+    static class WaveformView extends Canvas {
+        private static final long serialVersionUID = 1L;
+        private static final Color WAVE_BACKGROUND = new Color(0x55, 0x33, 0x77);
+        
+        private short[] mins;
+        private short[] maxs;
+        
+        public WaveformView() {
+            setPreferredSize(new Dimension(200, 60));
+            setBackground(WAVE_BACKGROUND);
+        }
+        
+        // Called on the event thread
+        public void setPeaks(short[] mins, short[] maxs) {
+            this.mins = mins;
+            this.maxs = maxs;
+            repaint();
+        }
+        
+        public void clear() {
+            setPeaks(null, null);
+        }
+        
+        @Override
+        public void paint(Graphics g) {
+            int height = getHeight();
+            int middle = height / 2;
+            g.setColor(BUTTON_COLOR);
+            g.drawLine(0, middle, getWidth(), middle);
+            if (mins == null) return;
+            g.setColor(TEXT_COLOR);
+            for (int x = 0, width = Math.min(mins.length, getWidth()); x < width; x++) {
+                int top = middle - maxs[x] * middle / 32768;
+                int bottom = middle - mins[x] * middle / 32768;
+                g.drawLine(x, top, x, bottom);
+            }
         }
     }
     
@@ -228,6 +573,38 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
             playRecording();
         } else if (source == tempoButton) {
             changeTempo();
+        } else if (source == loopButton) {
+            looping = !looping;
+            loopButton.setLabel(looping ? "Loop: " + LOOP_BARS + " bars" : "Loop: Off");
+        } else if (source == clickButton) {
+            clickOn = !clickOn;
+            clickButton.setLabel(clickOn ? "Click: On" : "Click: Off");
+        } else if (source == quantizeButton) {
+            quantizeOnSave = !quantizeOnSave;
+            quantizeButton.setLabel(quantizeOnSave ? "Grid: 1/16" : "Grid: Off");
+        } else if (source == trackButton) {
+            releaseHeldNote(System.nanoTime());
+            currentTrack = (currentTrack + 1) % TRACKS.length;
+            trackButton.setLabel("Track: " + TRACKS[currentTrack].name);
+            if (noteInput != null) noteInput.setChannel(TRACKS[currentTrack].channel);
+        } else if (source == effectsButton) {
+            effectsOn = !effectsOn;
+            if (liveMonitor != null) {
+                effectsButton.setLabel(effectsOn ? "FX: On" : "FX: Off");
+                liveMonitor.setEffects(effectsOn ? EffectsChain.createDefault(SAMPLE_RATE, RENDER_BLOCK_FRAMES) : null);
+            } else {
+                effectsButton.setLabel(effectsOn ? "FX: Saves only" : "FX: Off");
+                if (effectsOn) {
+                    noteLabel.setText("Effects apply to saved recordings only; live monitoring unavailable: " 
+                            + liveMonitorProblem);
+                }
+            }
+        } else if (source == formatButton) {
+            saveFormat = (saveFormat + 1) % AudioFiles.FORMAT_COUNT;
+            formatButton.setLabel("Save: " + AudioFiles.getName(saveFormat).toUpperCase(Locale.ROOT));
+        } else if (source == statsButton) {
+            if (metricsOverlay == null) metricsOverlay = new MetricsOverlay(this, Metrics.REGISTRY);
+            metricsOverlay.setVisible(!metricsOverlay.isVisible());
         } else if (source == playRecordingButton) {
             playSelectedRecording();
         } else if (source == renameButton) {
@@ -241,19 +618,32 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
     
     private void toggleRecording() {
         if (!isRecording) {
-            // Start recording
-            recordedEvents = new ArrayList<>();
-            recordStartTime = System.currentTimeMillis();
+            // Start recording. The loop engine starts the take clock together with the
+            // click and folds each pass onto the loop as it is played.
+            EventLog take = new EventLog();
+            recordTempo = tempo;
+            LoopTake loop = null;
+            if (loopEngine != null && (looping || clickOn)) {
+                loop = loopEngine.start(take, tempo, BEATS_PER_BAR, looping ? LOOP_BARS * BEATS_PER_BAR : 0, clickOn);
+            } else {
+                recordClock.start();
+            }
+            recordedEvents = loop != null ? loop : take;
             isRecording = true;
+            if (noteInput != null) noteInput.setTake(take);
             recordButton.setLabel("⏹ Stop");
             recordButton.setBackground(Color.RED);
-            noteLabel.setText("Recording...");
+            noteLabel.setText(loop != null ? "Recording " + LOOP_BARS + "-bar loop, play over it to overdub..." 
+                    : "Recording...");
         } else {
             // Stop recording
             isRecording = false;
+            if (noteInput != null) noteInput.setTake(null);
+            if (loopEngine != null) loopEngine.stop();
             recordButton.setLabel("⏺ Record");
             recordButton.setBackground(BUTTON_COLOR);
-            noteLabel.setText("Recording stopped");
+            noteLabel.setText(noteInput == null ? "Recording stopped" 
+                    : "Recording stopped (p99 input latency: " + noteInput.getLatencyMicros(99) + " µs)");
             
             // Save recording
             saveRecording();
@@ -261,152 +651,124 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
     }
     
     private void saveRecording() {
-        if (recordedEvents.isEmpty()) {
+        if (recordedEvents.size() == 0) {
             noteLabel.setText("No notes recorded");
             return;
         }
         
         String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        String filename = "recording_" + timestamp + ".wav";
+        String filename = "recording_" + timestamp + AudioFiles.getExtension(saveFormat);
+        // Events are stamped in sample frames since the start of the take
+        EventSource events = quantizeOnSave
+                ? Quantizer.quantize(recordedEvents, 0, SAMPLE_RATE, recordTempo, QUANTIZE_STEPS_PER_BEAT)
+                : recordedEvents;
+        int sessionTempo = recordTempo;
+        int format = saveFormat;
+        AudioProcessor effects = effectsOn ? EffectsChain.createDefault(SAMPLE_RATE, RENDER_BLOCK_FRAMES) : null;
         
+        // Rendering and file I/O run on the job queue so the keyboard stays responsive
+        submitJob("Saving " + filename, progress -> {
+            // Convert MIDI events to audio, encoding as it renders
+            RenderStats stats = ExportEngine.renderToFile(events, 0, SAMPLE_RATE, filename, format, effects, progress);
+            
+            // Keep the event log next to the WAV so the take can be re-rendered later
+            SessionFile.write(sessionPathFor(filename), events, 0, SAMPLE_RATE, sessionTempo);
+            return stats;
+        }, stats -> {
+            // The catalog may have listed the new file already
+            if (!savedRecordings.contains(filename)) {
+                savedRecordings.add(filename);
+                recordingsList.add(filename);
+            }
+            recordingsList.select(savedRecordings.indexOf(filename));
+            String fallback = SynthRenderer.getUnavailableReason();
+            noteLabel.setText(String.format("Saved: %s (rendered at %.0fx real time%s)", filename, 
+                    stats.getRealTimeFactor(), fallback == null ? "" : " with the tone mixer: " + fallback));
+        }, "Error saving recording");
+    }
+    
+    // Runs a job in the background and reports progress and the result on the event thread
+    private <T> void submitJob(String name, JobQueue.Job<T> job, Consumer<T> onSuccess, 
+                               String errorMessage) {
         try {
-            // Convert MIDI events to audio and save as WAV
-            saveMidiToWav(recordedEvents, filename);
-            savedRecordings.add(filename);
-            recordingsList.add(filename);
-            recordingsList.select(recordingsList.getItemCount() - 1);
-            noteLabel.setText("Saved: " + filename);
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            noteLabel.setText("Error saving recording");
+            jobs.submit(job, percent -> noteLabel.setText(name + "... " + percent + "%"), onSuccess, ex -> {
+                if (ex instanceof CancellationException) {
+                    noteLabel.setText(name + " cancelled");
+                } else {
+                    ex.printStackTrace();
+                    noteLabel.setText(errorMessage);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            noteLabel.setText("Too many pending jobs, try again");
         }
     }
     
-    private void saveMidiToWav(ArrayList<MidiEvent> events, String filename) throws Exception {
-        // This is a simplified implementation
-        // In a real application, you would need to properly convert MIDI to audio
-        
-        // Create a byte array output stream
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        
-        // Write WAV header (simplified)
-        writeWavHeader(baos, 44100, 16, 1, events.size() * 1000); // Approximate length
-        
-        // For each MIDI event, generate audio samples
-        // This is a very simplified approach - a real implementation would be more complex
-        for (MidiEvent event : events) {
-            // Generate simple sine wave samples for the note
-            // In reality, you'd use the MIDI synthesizer to generate proper audio
-            int note = event.getNote();
-            int velocity = event.getVelocity();
-            long duration = event.getDuration();
-            
-            // Simplified audio generation
-            generateTone(baos, note, velocity, duration);
+    private static void writeWavHeader(FileChannel channel, int sampleRate, int bitsPerSample, 
+                                       int channels, long dataSize) throws IOException {
+        if (dataSize > 0xFFFFFFFFL - 36) {
+            throw new IOException("Recording too long for a WAV file");
         }
         
-        // Write to file
-        FileOutputStream fos = new FileOutputStream(filename);
-        baos.writeTo(fos);
-        fos.close();
-    }
-    
-    private void writeWavHeader(ByteArrayOutputStream baos, int sampleRate, int bitsPerSample, 
-                               int channels, int dataSize) throws IOException {
         // WAV header implementation
-        byte[] header = new byte[44];
+        ByteBuffer header = ByteBuffer.allocate(WavWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
         
         // RIFF header
-        header[0] = 'R'; header[1] = 'I'; header[2] = 'F'; header[3] = 'F';
-        int fileSize = dataSize + 36;
-        header[4] = (byte)(fileSize & 0xff);
-        header[5] = (byte)((fileSize >> 8) & 0xff);
-        header[6] = (byte)((fileSize >> 16) & 0xff);
-        header[7] = (byte)((fileSize >> 24) & 0xff);
+        header.put((byte)'R').put((byte)'I').put((byte)'F').put((byte)'F');
+        header.putInt((int)(dataSize + 36));
         
         // WAVE header
-        header[8] = 'W'; header[9] = 'A'; header[10] = 'V'; header[11] = 'E';
+        header.put((byte)'W').put((byte)'A').put((byte)'V').put((byte)'E');
         
         // fmt chunk
-        header[12] = 'f'; header[13] = 'm'; header[14] = 't'; header[15] = ' ';
-        header[16] = 16; header[17] = 0; header[18] = 0; header[19] = 0; // chunk size
-        header[20] = 1; header[21] = 0; // PCM format
-        header[22] = (byte)channels; header[23] = 0; // channels
-        header[24] = (byte)(sampleRate & 0xff);
-        header[25] = (byte)((sampleRate >> 8) & 0xff);
-        header[26] = (byte)((sampleRate >> 16) & 0xff);
-        header[27] = (byte)((sampleRate >> 24) & 0xff);
-        
-        int byteRate = sampleRate * channels * bitsPerSample / 8;
-        header[28] = (byte)(byteRate & 0xff);
-        header[29] = (byte)((byteRate >> 8) & 0xff);
-        header[30] = (byte)((byteRate >> 16) & 0xff);
-        header[31] = (byte)((byteRate >> 24) & 0xff);
-        
-        header[32] = (byte)(channels * bitsPerSample / 8); // block align
-        header[33] = 0;
-        header[34] = (byte)bitsPerSample; // bits per sample
-        header[35] = 0;
+        header.put((byte)'f').put((byte)'m').put((byte)'t').put((byte)' ');
+        header.putInt(16); // chunk size
+        header.putShort((short)1); // PCM format
+        header.putShort((short)channels); // channels
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * channels * bitsPerSample / 8); // byte rate
+        header.putShort((short)(channels * bitsPerSample / 8)); // block align
+        header.putShort((short)bitsPerSample); // bits per sample
         
         // data chunk
-        header[36] = 'd'; header[37] = 'a'; header[38] = 't'; header[39] = 'a';
-        header[40] = (byte)(dataSize & 0xff);
-        header[41] = (byte)((dataSize >> 8) & 0xff);
-        header[42] = (byte)((dataSize >> 16) & 0xff);
-        header[43] = (byte)((dataSize >> 24) & 0xff);
+        header.put((byte)'d').put((byte)'a').put((byte)'t').put((byte)'a');
+        header.putInt((int)dataSize);
         
-        baos.write(header);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
     }
     
-    private void generateTone(ByteArrayOutputStream baos, int note, int velocity, long duration) {
-        // Simplified tone generation
-        // In a real application, you would use proper audio synthesis
-        double frequency = 440.0 * Math.pow(2, (note - 69) / 12.0);
-        int sampleRate = 44100;
-        int samples = (int)(duration * sampleRate / 1000);
-        
-        for (int i = 0; i < samples; i++) {
-            double angle = 2.0 * Math.PI * i * frequency / sampleRate;
-            short sample = (short)(Short.MAX_VALUE * Math.sin(angle) * velocity / 127.0);
-            
-            byte[] bytes = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN).putShort(sample).array();
-            baos.write(bytes, 0, bytes.length);
+    private static void toPcm16(float[] in, int offset, short[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            float sample = in[offset + i];
+            if (sample > 1f) sample = 1f;
+            else if (sample < -1f) sample = -1f;
+            out[i] = (short)(sample * Short.MAX_VALUE);
         }
     }
     
     private void playRecording() {
-        if (recordedEvents == null || recordedEvents.isEmpty()) {
+        if (playback != null && playback.isPlaying()) {
+            playback.stop();
+            noteLabel.setText("Playback stopped");
+            return;
+        }
+        
+        if (recordedEvents == null || recordedEvents.size() == 0) {
             noteLabel.setText("No recording to play");
             return;
         }
         
         noteLabel.setText("Playing recording...");
         
-        // Play recorded events with proper timing
-        new Thread(() -> {
-            long startTime = System.currentTimeMillis();
-            
-            for (MidiEvent event : recordedEvents) {
-                long eventTime = event.getTimestamp() - recordStartTime;
-                long currentTime = System.currentTimeMillis() - startTime;
-                
-                if (currentTime < eventTime) {
-                    try {
-                        Thread.sleep(eventTime - currentTime);
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
-                    }
-                }
-                
-                if (event.getType() == MidiEvent.Type.NOTE_ON) {
-                    channel.noteOn(event.getNote(), event.getVelocity());
-                } else if (event.getType() == MidiEvent.Type.NOTE_OFF) {
-                    channel.noteOff(event.getNote());
-                }
-            }
-            
-            noteLabel.setText("Playback finished");
-        }).start();
+        // Play recorded events on the shared note scheduler, scaled by the current tempo
+        double speed = (double)tempo / recordTempo;
+        playback.play(recordedEvents, 0, SAMPLE_RATE, speed, () ->
+                noteLabel.setText("Playback finished (p99 timing error: "
+                        + playback.getTimingErrorMicros(99) + " µs)"));
     }
     
     private void changeTempo() {
@@ -429,6 +791,38 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
         }
     }
     
+    private void showRecordingInfo() {
+        int selectedIndex = recordingsList.getSelectedIndex();
+        if (selectedIndex < 0) return;
+        
+        String filename = savedRecordings.get(selectedIndex);
+        RecordingCatalog.Entry entry = catalog.get(filename);
+        if (entry != null) {
+            long seconds = entry.durationMillis / 1000;
+            noteLabel.setText(entry.name + " — " + seconds / 60 + ":" + String.format("%02d", seconds % 60)
+                    + ", " + entry.noteCount + " notes, " + entry.sampleRate + " Hz, " + entry.size / 1024 + " KB");
+        }
+        showWaveform(filename);
+    }
+    
+    // Loads the peak summary off the event thread (generating the sidecar if it is missing)
+    // and draws one min/max pair per pixel column
+    private void showWaveform(String filename) {
+        int width = Math.max(1, waveformView.getWidth());
+        waveformView.clear();
+        submitJob("Loading waveform", progress -> {
+            short[][] peaks = new short[2][width];
+            peakCache.get(filename).render(width, peaks[0], peaks[1]);
+            return peaks;
+        }, peaks -> {
+            // Drop the result if the selection moved on while it loaded
+            int index = recordingsList.getSelectedIndex();
+            if (index >= 0 && savedRecordings.get(index).equals(filename)) {
+                waveformView.setPeaks(peaks[0], peaks[1]);
+            }
+        }, "Error loading waveform");
+    }
+    
     private void playSelectedRecording() {
         int selectedIndex = recordingsList.getSelectedIndex();
         if (selectedIndex >= 0) {
@@ -443,15 +837,13 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
     }
     
     private void playWavFile(String filename) {
-        try {
-            AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(new File(filename));
-            Clip clip = AudioSystem.getClip();
-            clip.open(audioInputStream);
-            clip.start();
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            noteLabel.setText("Error playing recording");
-        }
+        // Stream the file through the shared output line instead of decoding it into a Clip
+        wavPlayer.play(Collections.singletonList(Paths.get(filename)), 0,
+                () -> EventQueue.invokeLater(() -> noteLabel.setText("Finished: " + filename)),
+                ex -> EventQueue.invokeLater(() -> {
+                    ex.printStackTrace();
+                    noteLabel.setText("Error playing recording");
+                }));
     }
     
     private void renameSelectedRecording() {
@@ -462,22 +854,32 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
                     "Rename recording:", oldName);
             
             if (newName != null && !newName.trim().isEmpty()) {
-                if (!newName.endsWith(".wav")) {
-                    newName += ".wav";
+                // Keep the extension, which says how the audio is encoded
+                String extension = oldName.substring(AudioFiles.baseName(oldName).length());
+                if (!newName.endsWith(extension)) {
+                    newName = AudioFiles.baseName(newName) + extension;
                 }
                 
-                File oldFile = new File(oldName);
-                File newFile = new File(newName);
-                
-                if (oldFile.renameTo(newFile)) {
-                    savedRecordings.set(selectedIndex, newName);
-                    recordingsList.remove(selectedIndex);
-                    recordingsList.add(newName, selectedIndex);
-                    recordingsList.select(selectedIndex);
-                    noteLabel.setText("Renamed to: " + newName);
-                } else {
-                    noteLabel.setText("Error renaming file");
-                }
+                String renamed = newName;
+                peakCache.invalidate(oldName);
+                submitJob("Renaming " + oldName, progress -> {
+                    if (!new File(oldName).renameTo(new File(renamed))) {
+                        throw new IOException("Could not rename " + oldName);
+                    }
+                    new File(sessionPathFor(oldName).toString()).renameTo(new File(sessionPathFor(renamed).toString()));
+                    new File(peaksPathFor(oldName).toString()).renameTo(new File(peaksPathFor(renamed).toString()));
+                    return renamed;
+                }, result -> {
+                    // The list may have changed while the job ran, so look the entry up again
+                    int index = savedRecordings.indexOf(oldName);
+                    if (index >= 0) {
+                        savedRecordings.set(index, result);
+                        recordingsList.remove(index);
+                        recordingsList.add(result, index);
+                        recordingsList.select(index);
+                    }
+                    noteLabel.setText("Renamed to: " + result);
+                }, "Error renaming file");
             }
         } else {
             noteLabel.setText("No recording selected");
@@ -493,14 +895,23 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
                     javax.swing.JOptionPane.YES_NO_OPTION);
             
             if (response == javax.swing.JOptionPane.YES_OPTION) {
-                File file = new File(filename);
-                if (file.delete()) {
-                    savedRecordings.remove(selectedIndex);
-                    recordingsList.remove(selectedIndex);
-                    noteLabel.setText("Deleted: " + filename);
-                } else {
-                    noteLabel.setText("Error deleting file");
-                }
+                peakCache.invalidate(filename);
+                waveformView.clear();
+                submitJob("Deleting " + filename, progress -> {
+                    if (!new File(filename).delete()) {
+                        throw new IOException("Could not delete " + filename);
+                    }
+                    new File(sessionPathFor(filename).toString()).delete();
+                    new File(peaksPathFor(filename).toString()).delete();
+                    return filename;
+                }, deleted -> {
+                    int index = savedRecordings.indexOf(deleted);
+                    if (index >= 0) {
+                        savedRecordings.remove(index);
+                        recordingsList.remove(index);
+                    }
+                    noteLabel.setText("Deleted: " + deleted);
+                }, "Error deleting file");
             }
         } else {
             noteLabel.setText("No recording selected");
@@ -511,92 +922,6126 @@ public class VP_DAW extends Frame implements MouseListener, ActionListener {
         int selectedIndex = recordingsList.getSelectedIndex();
         if (selectedIndex >= 0) {
             String filename = savedRecordings.get(selectedIndex);
-            noteLabel.setText("Download functionality would save: " + filename);
-            // In a real application, this would implement proper file download
+            Path session = sessionPathFor(filename);
+            String midiName = sidecarPathFor(filename, ".mid").toString();
+            
+            // Export the recorded events as a Standard MIDI File; returns false without session data
+            submitJob("Exporting " + midiName, progress -> {
+                if (!Files.exists(session)) return false;
+                try (SessionFile source = SessionFile.open(session)) {
+                    SessionFile.exportMidi(source, new File(midiName));
+                }
+                return true;
+            }, exported -> noteLabel.setText(exported ? "Exported: " + midiName : "No session data for: " + filename),
+                    "Error exporting MIDI");
         } else {
             noteLabel.setText("No recording selected");
         }
     }
+    
+    private static Path sessionPathFor(String audioName) {
+        return sidecarPathFor(audioName, SessionFile.EXTENSION);
+    }
+    
+    private static Path peaksPathFor(String audioName) {
+        return sidecarPathFor(audioName, PeakSummary.EXTENSION);
+    }
+    
+    private static Path sidecarPathFor(String audioName, String extension) {
+        return Paths.get(AudioFiles.baseName(audioName) + extension);
+    }
 
     @Override
-    public void mouseClicked(MouseEvent e) {
-        Point click = e.getPoint();
+    public void mousePressed(MouseEvent e) {
+        long inputNanos = System.nanoTime();
+        canvas.requestFocusInWindow();
+        pressNote(keyHitMap.noteAt(e.getX(), e.getY()), inputNanos);
+    }
 
-        // Black keys first
-        for (Rectangle key : blackKeys) {
-            if (key != null && key.contains(click)) {
-                playKey(key, true);
-                return;
-            }
+    @Override
+    public void mouseDragged(MouseEvent e) {
+        // Glissando: moving onto another key releases the old note and starts the new one
+        long inputNanos = System.nanoTime();
+        int note = keyHitMap.noteAt(e.getX(), e.getY());
+        if (note != heldNote) {
+            releaseHeldNote(inputNanos);
+            pressNote(note, inputNanos);
         }
+    }
 
-        // White keys
-        for (Rectangle key : whiteKeys) {
-            if (key.contains(click)) {
-                playKey(key, true);
-                return;
-            }
+    @Override
+    public void mouseReleased(MouseEvent e) {
+        releaseHeldNote(System.nanoTime());
+    }
+
+    private void pressNote(int midiNote, long inputNanos) {
+        if (midiNote < 0 || noteInput == null) return;
+        heldNote = midiNote;
+        noteInput.noteOn(midiNote, DEFAULT_VELOCITY, inputNanos);
+    }
+
+    private void releaseHeldNote(long inputNanos) {
+        if (heldNote >= 0) {
+            noteInput.noteOff(heldNote, inputNanos);
+            heldNote = -1;
         }
     }
 
-    private void playKey(Rectangle key, boolean record) {
-        int midiNote = keyToMidi.get(key);
-        channel.noteOn(midiNote, 600);
-        noteLabel.setText("You played: " + midiNoteToName(midiNote));
-        
-        if (record && isRecording) {
-            long timestamp = System.currentTimeMillis();
-            recordedEvents.add(new MidiEvent(MidiEvent.Type.NOTE_ON, midiNote, 600, timestamp));
+    // Called by the capture pipeline on whichever thread delivered the input
+    private void showNote(int midiNote, boolean on) {
+        canvas.setNoteActive(midiNote, on);
+        if (on) {
+            EventQueue.invokeLater(() -> noteLabel.setText(
+                    "You played: " + midiNoteToName(midiNote) + " (" + TRACKS[currentTrack].name + ")"));
         }
-        
-        new Timer().schedule(new TimerTask() {
-            public void run() {
-                channel.noteOff(midiNote);
-                
-                if (record && isRecording) {
-                    long timestamp = System.currentTimeMillis();
-                    recordedEvents.add(new MidiEvent(MidiEvent.Type.NOTE_OFF, midiNote, 0, timestamp));
-                }
-            }
-        }, 500);
     }
 
-    private String midiNoteToName(int midiNote) {
+    private static String midiNoteToName(int midiNote) {
         String[] names = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
         return names[midiNote % 12] + (midiNote / 12 - 1);
     }
 
-    @Override public void mousePressed(MouseEvent e) {}
-    @Override public void mouseReleased(MouseEvent e) {}
+    @Override public void mouseClicked(MouseEvent e) {}
+    @Override public void mouseMoved(MouseEvent e) {}
     @Override public void mouseEntered(MouseEvent e) {}
     @Override public void mouseExited(MouseEvent e) {}
 
+    // Process-wide registry of counters, gauges and latency histograms. Hot paths look their
+    // metrics up once and keep them in fields, so recording is one atomic update with no
+    // allocation. Snapshots render as text for the overlay or as JSON for tooling. With
+    // -Dvpdaw.jfr=true, trace() also commits a JFR event, for coarse events only.
+    static final class Metrics {
+        static final Metrics REGISTRY = new Metrics(Boolean.getBoolean("vpdaw.jfr"));
+        
+        private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+        private final JfrBridge jfr;
+        
+        Metrics(boolean jfrEnabled) {
+            this.jfr = jfrEnabled ? JfrBridge.create() : null;
+        }
+        
+        static final class Counter {
+            private final AtomicLong value = new AtomicLong();
+            
+            public void increment() { value.incrementAndGet(); }
+            public void add(long delta) { value.addAndGet(delta); }
+            public long get() { return value.get(); }
+        }
+        
+        public Counter counter(String name) {
+            return counters.computeIfAbsent(name, n -> new Counter());
+        }
+        
+        public LatencyHistogram histogram(String name) {
+            return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+        }
+        
+        // Sampled on each snapshot; replaces any gauge of the same name
+        public void gauge(String name, LongSupplier value) {
+            gauges.put(name, value);
+        }
+        
+        public boolean isTracing() { return jfr != null; }
+        
+        public void trace(String name, long value) {
+            if (jfr != null) jfr.emit(name, value);
+        }
+        
+        public String toText() {
+            StringBuilder out = new StringBuilder();
+            for (String name : new TreeSet<>(counters.keySet())) {
+                out.append(String.format("%-28s %d%n", name, counters.get(name).get()));
+            }
+            for (String name : new TreeSet<>(gauges.keySet())) {
+                out.append(String.format("%-28s %d%n", name, sample(gauges.get(name))));
+            }
+            for (String name : new TreeSet<>(histograms.keySet())) {
+                LatencyHistogram histogram = histograms.get(name);
+                out.append(String.format("%-28s n=%d p50=%d p99=%d p99.9=%d max=%d%n", name,
+                        histogram.getCount(), histogram.getPercentile(50), histogram.getPercentile(99),
+                        histogram.getPercentile(99.9), histogram.getPercentile(100)));
+            }
+            return out.toString();
+        }
+        
+        public String toJson() {
+            StringBuilder out = new StringBuilder("{\n  \"counters\": {");
+            String separator = "";
+            for (String name : new TreeSet<>(counters.keySet())) {
+                out.append(separator).append("\n    \"").append(name).append("\": ").append(counters.get(name).get());
+                separator = ",";
+            }
+            out.append("\n  },\n  \"gauges\": {");
+            separator = "";
+            for (String name : new TreeSet<>(gauges.keySet())) {
+                out.append(separator).append("\n    \"").append(name).append("\": ").append(sample(gauges.get(name)));
+                separator = ",";
+            }
+            out.append("\n  },\n  \"histograms\": {");
+            separator = "";
+            for (String name : new TreeSet<>(histograms.keySet())) {
+                LatencyHistogram histogram = histograms.get(name);
+                out.append(separator).append("\n    \"").append(name).append("\": {")
+                        .append("\"count\": ").append(histogram.getCount())
+                        .append(", \"p50\": ").append(histogram.getPercentile(50))
+                        .append(", \"p90\": ").append(histogram.getPercentile(90))
+                        .append(", \"p99\": ").append(histogram.getPercentile(99))
+                        .append(", \"p999\": ").append(histogram.getPercentile(99.9))
+                        .append(", \"max\": ").append(histogram.getPercentile(100)).append('}');
+                separator = ",";
+            }
+            return out.append("\n  }\n}\n").toString();
+        }
+        
+        public void writeJson(Path path) throws IOException {
+            Files.write(path, toJson().getBytes(StandardCharsets.UTF_8));
+        }
+        
+        private static long sample(LongSupplier gauge) {
+            try {
+                return gauge.getAsLong();
+            } catch (RuntimeException ex) {
+                return -1;
+            }
+        }
+    }
+    
+    // Commits "vpdaw.Metric" JFR events (name, value) through jdk.jfr.EventFactory. It is
+    // reached reflectively so the app still starts on runtimes without JFR, where create()
+    // returns null. Each emit allocates, which is why only coarse events are traced.
+    static final class JfrBridge {
+        private final Object factory;
+        private final Method newEvent;
+        private final Method set;
+        private final Method commit;
+        
+        private JfrBridge(Object factory, Method newEvent, Method set, Method commit) {
+            this.factory = factory;
+            this.newEvent = newEvent;
+            this.set = set;
+            this.commit = commit;
+        }
+        
+        static JfrBridge create() {
+            try {
+                Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+                Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+                Class<?> event = Class.forName("jdk.jfr.Event");
+                
+                List<Object> annotations = new ArrayList<>();
+                annotations.add(annotationElement.getConstructor(Class.class, Object.class)
+                        .newInstance(Class.forName("jdk.jfr.Name"), "vpdaw.Metric"));
+                annotations.add(annotationElement.getConstructor(Class.class, Object.class)
+                        .newInstance(Class.forName("jdk.jfr.Label"), "VP DAW Metric"));
+                List<Object> fields = new ArrayList<>();
+                fields.add(valueDescriptor.getConstructor(Class.class, String.class).newInstance(String.class, "name"));
+                fields.add(valueDescriptor.getConstructor(Class.class, String.class).newInstance(long.class, "value"));
+                
+                Object factory = eventFactory.getMethod("create", List.class, List.class)
+                        .invoke(null, annotations, fields);
+                return new JfrBridge(factory, eventFactory.getMethod("newEvent"),
+                        event.getMethod("set", int.class, Object.class), event.getMethod("commit"));
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                return null;
+            }
+        }
+        
+        void emit(String name, long value) {
+            try {
+                Object event = newEvent.invoke(factory);
+                set.invoke(event, 0, name);
+                set.invoke(event, 1, value);
+                commit.invoke(event);
+            } catch (ReflectiveOperationException ex) {
+                // tracing is best effort
+            }
+        }
+    }
+    
+    // Debug window listing every metric, refreshed twice a second while shown
+    static class MetricsOverlay extends Dialog {
+        private static final long serialVersionUID = 1L;
+        private static final int REFRESH_MS = 500;
+        private final Metrics metrics;
+        private final TextArea text = new TextArea("", 24, 90, TextArea.SCROLLBARS_VERTICAL_ONLY);
+        private final javax.swing.Timer refresh;
+        
+        MetricsOverlay(Frame owner, Metrics metrics) {
+            super(owner, "Metrics", false);
+            this.metrics = metrics;
+            text.setEditable(false);
+            text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            add(text, BorderLayout.CENTER);
+            
+            Button dump = new Button("Dump JSON");
+            dump.addActionListener(e -> {
+                String name = "metrics_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".json";
+                try {
+                    metrics.writeJson(Paths.get(name));
+                    setTitle("Metrics - saved " + name);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    setTitle("Metrics - could not save " + name);
+                }
+            });
+            Panel buttons = new Panel(new FlowLayout(FlowLayout.RIGHT));
+            buttons.add(dump);
+            add(buttons, BorderLayout.SOUTH);
+            
+            refresh = new javax.swing.Timer(REFRESH_MS, e -> update());
+            addWindowListener(new WindowAdapter() {
+                public void windowClosing(WindowEvent e) { setVisible(false); }
+            });
+            pack();
+        }
+        
+        @Override
+        public void setVisible(boolean visible) {
+            if (visible) {
+                update();
+                refresh.start();
+            } else {
+                refresh.stop();
+            }
+            super.setVisible(visible);
+        }
+        
+        private void update() {
+            int caret = text.getCaretPosition();
+            text.setText(metrics.toText());
+            text.setCaretPosition(Math.min(caret, text.getText().length()));
+        }
+    }
+    
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(BatchCli.run(args));
+        }
         new VP_DAW();
     }
     
-    // Helper class for MIDI events
-    class MidiEvent {
-        public enum Type { NOTE_ON, NOTE_OFF }
+    // Headless entry point for render farms and scripts. No window or audio device is opened.
+    //   --render  <in.session|dir> <out.wav|dir>    bounce sessions to WAV (+ .peaks)
+    //   --convert <in.mid|in.session|dir> <out|dir> MIDI to session, or session to MIDI
+    //   --archive <in.wav|in.flac|dir> <out|dir>    re-encode recordings, FLAC unless --format
+    //   --format wav|flac|adpcm                     audio encoding for --render and --archive
+    //   --analyze <in.session|dir>                  print event, channel and length summaries
+    //   --workers N                                 files processed in parallel
+    //   --fx                                        render through the default effects chain
+    //   --metrics out.json                          write the metrics registry when done
+    //   --bench [options]                           run the built-in benchmarks (see Benchmarks)
+    //   --input-latency [notes]                     play notes through the MIDI loopback port
+    static final class BatchCli {
+        private BatchCli() {}
+        
+        static int run(String[] args) {
+            System.setProperty("java.awt.headless", "true");
+            if (args[0].equals("--bench")) {
+                return Benchmarks.run(Arrays.copyOfRange(args, 1, args.length));
+            }
+            if (args[0].equals("--input-latency")) {
+                try {
+                    return probeInputLatency(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+                } catch (NumberFormatException ex) {
+                    return usage("--input-latency takes a note count");
+                }
+            }
+            
+            int workers = Runtime.getRuntime().availableProcessors();
+            Path metricsPath = null;
+            boolean effects = false;
+            int format = -1;
+            List<String> operands = new ArrayList<>();
+            String command = null;
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    if (args[i].equals("--workers")) {
+                        workers = Integer.parseInt(args[++i]);
+                        if (workers < 1) return usage("--workers must be at least 1");
+                    } else if (args[i].equals("--fx")) {
+                        effects = true;
+                    } else if (args[i].equals("--metrics")) {
+                        metricsPath = Paths.get(args[++i]);
+                    } else if (args[i].equals("--format")) {
+                        format = AudioFiles.parseFormat(args[++i]);
+                        if (format < 0) return usage("--format must be wav, flac or adpcm");
+                    } else if (args[i].equals("--render") || args[i].equals("--convert") 
+                            || args[i].equals("--analyze") || args[i].equals("--archive")) {
+                        if (command != null) return usage("Only one command at a time");
+                        command = args[i];
+                    } else if (args[i].startsWith("--")) {
+                        return usage("Unknown option " + args[i]);
+                    } else {
+                        operands.add(args[i]);
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+                return usage("--workers, --metrics and --format need a value");
+            }
+            if (command == null) return usage(null);
+            
+            int expected = command.equals("--analyze") ? 1 : 2;
+            if (operands.size() != expected) return usage(command + " needs " + expected + " path(s)");
+            
+            try {
+                Path in = Paths.get(operands.get(0));
+                Path out = expected == 2 ? Paths.get(operands.get(1)) : null;
+                int status;
+                switch (command) {
+                    case "--render":
+                        boolean fx = effects;
+                        int renderFormat = format < 0 ? AudioFiles.FORMAT_PCM : format;
+                        status = runAll(plan(in, out, SessionFile.EXTENSION, AudioFiles.getExtension(renderFormat)), 
+                                workers, (from, to) -> render(from, to, renderFormat, fx));
+                        break;
+                    case "--archive":
+                        int archiveFormat = format < 0 ? AudioFiles.FORMAT_FLAC : format;
+                        status = runAll(plan(in, out, ".wav", AudioFiles.getExtension(archiveFormat)), workers, 
+                                (from, to) -> archive(from, to, archiveFormat));
+                        break;
+                    case "--convert":
+                        status = convertAll(in, out, workers);
+                        break;
+                    default:
+                        status = runAll(plan(in, null, SessionFile.EXTENSION, null), workers, BatchCli::analyze);
+                        break;
+                }
+                if (metricsPath != null) Metrics.REGISTRY.writeJson(metricsPath);
+                return status;
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+                return 1;
+            }
+        }
+        
+        private interface Task {
+            // Returns frames of audio covered by the file, for throughput
+            long process(Path in, Path out) throws Exception;
+        }
+        
+        private static int convertAll(Path in, Path out, int workers) throws IOException {
+            boolean toSession = Files.isDirectory(in)
+                    ? !listInputs(in, SessionFile.EXTENSION).iterator().hasNext()
+                    : !in.toString().endsWith(SessionFile.EXTENSION);
+            if (toSession) {
+                return runAll(plan(in, out, ".mid", SessionFile.EXTENSION), workers, (from, to) -> {
+                    SessionFile.importMidi(from.toFile(), to);
+                    return 0;
+                });
+            }
+            return runAll(plan(in, out, SessionFile.EXTENSION, ".mid"), workers, (from, to) -> {
+                try (SessionFile session = SessionFile.open(from)) {
+                    SessionFile.exportMidi(session, to.toFile());
+                }
+                return 0;
+            });
+        }
+        
+        // Pairs each input file with its output; a directory maps to every matching file in it
+        private static Map<Path, Path> plan(Path in, Path out, String inExtension, String outExtension) 
+                throws IOException {
+            Map<Path, Path> jobs = new LinkedHashMap<>();
+            if (!Files.isDirectory(in)) {
+                if (!Files.isRegularFile(in)) throw new IOException("No such file: " + in);
+                jobs.put(in, out);
+                return jobs;
+            }
+            if (out != null) Files.createDirectories(out);
+            for (Path file : listInputs(in, inExtension)) {
+                String name = file.getFileName().toString();
+                String base = name.substring(0, name.length() - inExtension.length());
+                jobs.put(file, out == null ? null : out.resolve(base + outExtension));
+            }
+            return jobs;
+        }
+        
+        private static List<Path> listInputs(Path dir, String extension) throws IOException {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + extension)) {
+                for (Path file : stream) files.add(file);
+            }
+            Collections.sort(files);
+            return files;
+        }
+        
+        private static int runAll(Map<Path, Path> jobs, int workers, Task task) {
+            ExecutorService pool = Executors.newFixedThreadPool(workers);
+            AtomicInteger failed = new AtomicInteger();
+            AtomicLong frames = new AtomicLong();
+            long start = System.nanoTime();
+            try {
+                List<java.util.concurrent.Future<?>> pending = new ArrayList<>();
+                for (Map.Entry<Path, Path> job : jobs.entrySet()) {
+                    pending.add(pool.submit(() -> {
+                        try {
+                            frames.addAndGet(task.process(job.getKey(), job.getValue()));
+                        } catch (Exception ex) {
+                            failed.incrementAndGet();
+                            System.err.println(job.getKey() + ": " + ex);
+                        }
+                    }));
+                }
+                for (java.util.concurrent.Future<?> future : pending) {
+                    future.get();
+                }
+            } catch (Exception ex) {
+                System.err.println(ex);
+                return 1;
+            } finally {
+                pool.shutdownNow();
+            }
+            
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int done = jobs.size() - failed.get();
+            StringBuilder summary = new StringBuilder(String.format("%d file(s) in %.2f s, %.2f files/s", 
+                    done, seconds, done / Math.max(seconds, 1e-9)));
+            if (frames.get() > 0) {
+                summary.append(String.format(", %.1fx real time", frames.get() / (double)SAMPLE_RATE / seconds));
+            }
+            long rss = peakRssKilobytes();
+            summary.append(rss >= 0 ? String.format(", peak RSS %.1f MB", rss / 1024.0) : ", peak RSS n/a");
+            if (failed.get() > 0) summary.append(", ").append(failed.get()).append(" failed");
+            System.out.println(summary);
+            return failed.get() == 0 ? 0 : 1;
+        }
+        
+        private static long render(Path in, Path out, int format, boolean effects) throws Exception {
+            AudioProcessor chain = effects ? EffectsChain.createDefault(SAMPLE_RATE, RENDER_BLOCK_FRAMES) : null;
+            RenderStats stats = ExportEngine.renderSession(in, out, format, chain, null);
+            System.out.println(String.format("%s -> %s: %.1f s of audio, %.1fx real time", 
+                    in, out, stats.frames / (double)stats.sampleRate, stats.getRealTimeFactor()));
+            return stats.frames * SAMPLE_RATE / stats.sampleRate;
+        }
+        
+        private static long archive(Path in, Path out, int format) throws Exception {
+            if (Files.exists(out) && Files.isSameFile(in, out)) throw new IOException("Output would overwrite the input");
+            // Durations come from the file's own rate, which need not be SAMPLE_RATE
+            RenderStats stats = AudioFiles.transcode(in, out, format);
+            System.out.println(String.format("%s -> %s: %.1f s of audio, %.2f:1, %.1fx real time", in, out,
+                    stats.frames / (double)stats.sampleRate, Files.size(in) / (double)Math.max(1, Files.size(out)),
+                    stats.getRealTimeFactor()));
+            return stats.frames * SAMPLE_RATE / stats.sampleRate;
+        }
         
-        private Type type;
-        private int note;
-        private int velocity;
-        private long timestamp;
-        private long duration;
+        private static long analyze(Path in, Path out) throws IOException {
+            try (SessionFile session = SessionFile.open(in)) {
+                int size = session.size();
+                int notes = 0;
+                int lowest = 127;
+                int highest = 0;
+                int channels = 0;
+                for (int i = 0; i < size; i++) {
+                    if (session.getType(i) != EventLog.NOTE_ON) continue;
+                    notes++;
+                    lowest = Math.min(lowest, session.getNote(i));
+                    highest = Math.max(highest, session.getNote(i));
+                    channels |= 1 << session.getChannel(i);
+                }
+                double seconds = size == 0 ? 0 : (double)session.getTime(size - 1) / session.getTimeBase();
+                System.out.println(String.format("%s: %d events, %d notes, %.1f s at %d BPM, channels %s, range %s", 
+                        in, size, notes, seconds, session.getTempo(), channelList(channels),
+                        notes == 0 ? "-" : midiNoteToName(lowest) + ".." + midiNoteToName(highest)));
+                return 0;
+            }
+        }
         
-        public MidiEvent(Type type, int note, int velocity, long timestamp) {
-            this.type = type;
-            this.note = note;
-            this.velocity = velocity;
-            this.timestamp = timestamp;
+        private static String channelList(int mask) {
+            StringBuilder list = new StringBuilder();
+            for (int channel = 0; channel < 16; channel++) {
+                if ((mask & 1 << channel) == 0) continue;
+                if (list.length() > 0) list.append(',');
+                list.append(channel + 1);
+            }
+            return list.length() == 0 ? "-" : list.toString();
         }
         
-        public Type getType() { return type; }
-        public int getNote() { return note; }
-        public int getVelocity() { return velocity; }
-        public long getTimestamp() { return timestamp; }
-        public long getDuration() { return duration; }
-        public void setDuration(long duration) { this.duration = duration; }
+        // A scripted player on the loopback port drives the same capture pipeline as a
+        // hardware controller; reports how long each note-on took to reach the synthesizer
+        private static int probeInputLatency(int notes) {
+            Synthesizer synthesizer = null;
+            LoopbackMidiDevice loopback = new LoopbackMidiDevice();
+            try {
+                synthesizer = MidiSystem.getSynthesizer();
+                // Prefer the offline stream so no audio device is needed
+                if (SynthRenderer.openStream(synthesizer, new AudioFormat(SAMPLE_RATE, 16, 1, true, false)) == null) {
+                    synthesizer.open();
+                }
+                SessionClock clock = new SessionClock(SAMPLE_RATE);
+                NoteInput input = new NoteInput(new MidiRouter(synthesizer.getChannels()), (note, on) -> {}, clock);
+                EventLog take = new EventLog();
+                input.setTake(take);
+                
+                loopback.open();
+                loopback.getTransmitter().setReceiver(new MidiInput(input));
+                Receiver player = loopback.getReceiver();
+                for (int i = 0; i < notes; i++) {
+                    int note = 48 + i % 24;
+                    player.send(new ShortMessage(ShortMessage.NOTE_ON, 0, note, DEFAULT_VELOCITY), -1);
+                    LockSupport.parkNanos(1_000_000);
+                    player.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, note, 0), -1);
+                }
+                
+                System.out.println(String.format("%d notes, %d events captured, input to noteOn p50 %d us, "
+                        + "p99 %d us, p99.9 %d us", notes, take.size(), input.getLatencyMicros(50),
+                        input.getLatencyMicros(99), input.getLatencyMicros(99.9)));
+                return take.size() == notes * 2 ? 0 : 1;
+            } catch (MidiUnavailableException | InvalidMidiDataException ex) {
+                System.err.println("No synthesizer available: " + ex.getMessage());
+                return 1;
+            } finally {
+                loopback.close();
+                if (synthesizer != null) synthesizer.close();
+            }
+        }
+        
+        // High-water resident set size from procfs; -1 where that is not available
+        private static long peakRssKilobytes() {
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get("/proc/self/status"))) {
+                for (String line; (line = reader.readLine()) != null; ) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    }
+                }
+            } catch (IOException | NumberFormatException ex) {
+                // not Linux
+            }
+            return -1;
+        }
+        
+        private static int usage(String error) {
+            if (error != null) System.err.println(error);
+            System.err.println("Usage: java VP_DAW --render <in.session|dir> <out.wav|dir> [--workers N] [--fx] [--format F] [--metrics out.json]");
+            System.err.println("       java VP_DAW --convert <in.mid|in.session|dir> <out|dir> [--workers N]");
+            System.err.println("       java VP_DAW --archive <in.wav|in.flac|dir> <out|dir> [--format flac|adpcm|wav] [--workers N]");
+            System.err.println("       java VP_DAW --analyze <in.session|dir> [--workers N]");
+            System.err.println("       java VP_DAW --bench [--length 10,60] [--polyphony 1,8,32] [--baseline file] [--soak]");
+            System.err.println("       java VP_DAW --input-latency [notes]");
+            return 2;
+        }
+    }
+    
+    // Built-in micro-benchmarks for the hot paths, run with --bench. Each case is warmed up,
+    // then repeated in fixed-length rounds; the fastest round gives ns per operation, and
+    // bytes allocated per operation are averaged over all measured rounds.
+    // A run can be saved as a baseline and later runs compared against it, failing when a
+    // case slows down by more than REGRESSION_PERCENT. Correctness checks that fail are
+    // counted and reported on their own.
+    // bench-baseline.properties in the repository is a reference run with the default
+    // options. Timings only compare on the machine that produced them; the baseline records
+    // the CPU count and is ignored on a machine with a different one. Regenerate it on the
+    // machine that will do the comparing, and again whenever a case is added or changed:
+    //   java VP_DAW --bench --save-baseline bench-baseline.properties
+    //   java VP_DAW --bench --baseline bench-baseline.properties
+    //   --length 10,60       session lengths in seconds
+    //   --polyphony 1,8,32   simultaneous notes
+    //   --save-baseline F    write ns/op per case to F
+    //   --baseline F         compare against F
+    //   --soak               also render a one-hour take in a JVM with a capped heap
+    static final class Benchmarks {
+        private static final int WARMUP_ROUNDS = 3;
+        private static final int MEASURED_ROUNDS = 5;
+        private static final long ROUND_NANOS = 200_000_000;
+        private static final double REGRESSION_PERCENT = 10;
+        private static final double CHORD_SECONDS = 0.5;
+        private static final int OVERDUB_PASSES = 100;
+        private static final int OVERDUB_LOOP_SECONDS = 8;
+        private static final int CAPTURE_LOG_EVENTS = 1 << 20;
+        private static final int STRESS_WRITERS = 4;
+        private static final int STRESS_EVENTS = 1 << 18;
+        private static final int CATALOG_ENTRIES = 10_000;
+        private static final long CATALOG_TIMEOUT_MS = 30_000;
+        private static final int[] QUANTIZE_TEMPOS = {97, 120, 173};
+        private static final int QUANTIZE_ONSETS = 30_000;
+        private static final int RENDER_ONSETS = 32;
+        private static final int WAV_START_WARMUP = 200;
+        private static final int WAV_START_RUNS = 1000;
+        private static final int SOAK_SECONDS = 3600;
+        private static final String SOAK_HEAP = "-Xmx64m";
+        private static final String CPUS_KEY = "cpus";
+        private static final int SCHEDULER_NOTES_PER_S = 10_000;
+        private static final int SCHEDULER_SECONDS = 2;
+        private static final long SCHEDULER_NOTE_MS = 50;
+        private static final long SCHEDULER_P99_LIMIT_US = 5000;
+        
+        // B/op of every case measured in this run, for comparisons between cases
+        private static final Map<String, Double> bytesPerOp = new HashMap<>();
+        // Cases slower than the baseline; counted apart from failed correctness checks
+        private static final List<String> regressed = new ArrayList<>();
+        
+        private Benchmarks() {}
+        
+        private interface Case {
+            // Returns the number of operations performed
+            long run() throws Exception;
+        }
+        
+        static int run(String[] args) {
+            int[] lengths = {10, 60};
+            int[] polyphonies = {1, 8, 32};
+            Path baselinePath = null;
+            Path savePath = null;
+            boolean soak = false;
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "--length": lengths = parseList(args[++i]); break;
+                        case "--polyphony": polyphonies = parseList(args[++i]); break;
+                        case "--baseline": baselinePath = Paths.get(args[++i]); break;
+                        case "--save-baseline": savePath = Paths.get(args[++i]); break;
+                        case "--soak": soak = true; break;
+                        default:
+                            System.err.println("Unknown benchmark option " + args[i]);
+                            return 2;
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+                System.err.println("Usage: java VP_DAW --bench [--length 10,60] [--polyphony 1,8,32] "
+                        + "[--baseline file] [--save-baseline file] [--soak]");
+                return 2;
+            }
+            
+            try {
+                String cpus = String.valueOf(Runtime.getRuntime().availableProcessors());
+                Properties baseline = new Properties();
+                if (baselinePath != null) {
+                    try (InputStream in = Files.newInputStream(baselinePath)) {
+                        baseline.load(in);
+                    }
+                    // Timings from a machine with a different core count say nothing about this one
+                    String recorded = baseline.getProperty(CPUS_KEY);
+                    if (!cpus.equals(recorded)) {
+                        System.out.println("Baseline was recorded with " 
+                                + (recorded != null ? recorded : "an unknown number of") + " CPU(s), this machine has " 
+                                + cpus + "; timings are not compared. Regenerate it with --save-baseline here.");
+                        baseline.clear();
+                    }
+                }
+                Properties results = new Properties();
+                results.setProperty(CPUS_KEY, cpus);
+                Path scratch = Files.createTempFile("vpdaw-bench", ".wav");
+                int failures = 0;
+                try {
+                    measure("hittest", hitTest(), baseline, results);
+                    for (int polyphony : polyphonies) {
+                        measure("paint/held=" + polyphony, paint(polyphony), baseline, results);
+                    }
+                    measure("wav.header", wavHeader(scratch), baseline, results);
+                    EffectsChain chain = EffectsChain.createDefault(SAMPLE_RATE, RENDER_BLOCK_FRAMES);
+                    AudioProcessor[] processors = {
+                        new Equalizer(SAMPLE_RATE, 2f, 0f, 1.5f),
+                        new Delay(SAMPLE_RATE, 0.375, 0.3f, 0.2f),
+                        new Reverb(SAMPLE_RATE, RENDER_BLOCK_FRAMES, 0.8f, 0.3f, 0.25f),
+                        chain
+                    };
+                    for (AudioProcessor processor : processors) {
+                        measure("fx." + processor.getName() + "/block", effect(processor), baseline, results);
+                    }
+                    for (int layers : new int[] {1, OVERDUB_PASSES}) {
+                        measure("overdub.merge/layers=" + layers, overdubMerge(layers), baseline, results);
+                        measure("overdub.play/layers=" + layers, overdubPlay(layers), baseline, results);
+                    }
+                    for (int seconds : lengths) {
+                        for (int polyphony : polyphonies) {
+                            String params = "/len=" + seconds + "/poly=" + polyphony;
+                            EventLog session = syntheticSession(seconds, polyphony);
+                            measure("capture" + params, capture(seconds, polyphony), baseline, results);
+                            measure("synth.mix" + params, mix(session), baseline, results);
+                            measure("synth.sine" + params, sineTones(session), baseline, results);
+                            compareThroughput("synth.compare" + params, "synth.mix" + params, "synth.sine" + params, results);
+                            measure("export" + params, export(session, scratch), baseline, results);
+                        }
+                    }
+                    failures += codecs(lengths[lengths.length - 1], scratch, baseline, results);
+                    failures += wavStart(lengths[lengths.length - 1]);
+                    failures += parallelRender(lengths[lengths.length - 1]);
+                    failures += eventLogStress();
+                    failures += catalogStartup();
+                    failures += quantizerAccuracy();
+                    failures += renderedOnsets();
+                    failures += schedulerLateness();
+                    if (soak) failures += soak();
+                } finally {
+                    Files.deleteIfExists(scratch);
+                    Files.deleteIfExists(peaksPathFor(scratch.toString()));
+                }
+                
+                if (savePath != null) {
+                    try (OutputStream out = Files.newOutputStream(savePath)) {
+                        results.store(out, "VP_DAW benchmark baseline, ns/op");
+                    }
+                }
+                if (failures > 0) System.out.println(failures + " correctness check(s) failed");
+                if (!regressed.isEmpty()) {
+                    System.out.println(regressed.size() + " case(s) regressed by more than " + REGRESSION_PERCENT 
+                            + "%: " + String.join(", ", regressed));
+                }
+                return failures > 0 || !regressed.isEmpty() ? 1 : 0;
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                return 1;
+            }
+        }
+        
+        // Adds the case to regressed if it is slower than the baseline by more than REGRESSION_PERCENT
+        private static void measure(String name, Case benchmark, Properties baseline, Properties results) 
+                throws Exception {
+            for (int round = 0; round < WARMUP_ROUNDS; round++) runRound(benchmark);
+            
+            double nanosPerOp = Double.MAX_VALUE;
+            long operations = 0;
+            long allocated = 0;
+            for (int round = 0; round < MEASURED_ROUNDS; round++) {
+                long bytesBefore = allocatedBytes();
+                long start = System.nanoTime();
+                long count = runRound(benchmark);
+                long nanos = System.nanoTime() - start;
+                allocated += allocatedBytes() - bytesBefore;
+                operations += count;
+                nanosPerOp = Math.min(nanosPerOp, (double)nanos / count);
+            }
+            results.setProperty(name, String.valueOf(nanosPerOp));
+            if (allocatedBytes() >= 0) bytesPerOp.put(name, (double)allocated / operations);
+            
+            StringBuilder line = new StringBuilder(String.format("%-30s %12.2f ns/op", name, nanosPerOp));
+            line.append(allocatedBytes() < 0 ? "        n/a B/op" 
+                    : String.format(" %10.2f B/op", (double)allocated / operations));
+            String previous = baseline.getProperty(name);
+            if (previous != null) {
+                double change = (nanosPerOp / Double.parseDouble(previous) - 1) * 100;
+                line.append(String.format(" %+7.1f%%", change));
+                if (change > REGRESSION_PERCENT) {
+                    line.append(" REGRESSED");
+                    regressed.add(name);
+                }
+            }
+            System.out.println(line);
+        }
+        
+        private static long runRound(Case benchmark) throws Exception {
+            long operations = 0;
+            long start = System.nanoTime();
+            do {
+                operations += benchmark.run();
+            } while (System.nanoTime() - start < ROUND_NANOS);
+            return operations;
+        }
+        
+        // Bytes allocated by the current thread, or -1 where the JVM does not track it
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+            return -1;
+        }
+        
+        // A chord of `polyphony` notes every half second, each held for most of the gap
+        private static EventLog syntheticSession(int seconds, int polyphony) {
+            EventLog events = new EventLog();
+            long step = (long)(CHORD_SECONDS * SAMPLE_RATE);
+            for (long time = 0; time < (long)seconds * SAMPLE_RATE; time += step) {
+                for (int voice = 0; voice < polyphony; voice++) {
+                    events.append(EventLog.NOTE_ON, 36 + voice * 7 % 61, DEFAULT_VELOCITY, time);
+                }
+                for (int voice = 0; voice < polyphony; voice++) {
+                    events.append(EventLog.NOTE_OFF, 36 + voice * 7 % 61, 0, time + step * 4 / 5);
+                }
+            }
+            return events;
+        }
+        
+        // Appending live input to an event log, as recording does. A log is created up front
+        // and filled over many runs, so what is measured is the append itself plus chunk
+        // allocation as the log grows, not the one-off cost of setting up a log.
+        private static Case capture(int seconds, int polyphony) {
+            int count = (int)(seconds / CHORD_SECONDS) * polyphony * 2;
+            EventLog[] log = {new EventLog()};
+            return () -> {
+                EventLog events = log[0];
+                int base = events.size();
+                if (base + count > CAPTURE_LOG_EVENTS) {
+                    events = log[0] = new EventLog();
+                    base = 0;
+                }
+                for (int i = 0; i < count; i++) {
+                    events.append((byte)(i & 1), 60 + i % 24, DEFAULT_VELOCITY, (base + i) * 100L);
+                }
+                return count;
+            };
+        }
+        
+        // Several threads append to one log while another keeps reading the visible prefix.
+        // Each writer has its own channel and numbers its events in the time field, so the
+        // finished log must hold every event, each writer's in order, and the reader must
+        // never see a slot that was not yet written.
+        private static int eventLogStress() throws InterruptedException {
+            EventLog events = new EventLog();
+            int total = STRESS_WRITERS * STRESS_EVENTS;
+            AtomicInteger torn = new AtomicInteger();
+            Thread[] writers = new Thread[STRESS_WRITERS];
+            for (int w = 0; w < writers.length; w++) {
+                int channel = w;
+                writers[w] = new Thread(() -> {
+                    for (int i = 0; i < STRESS_EVENTS; i++) {
+                        events.append((byte)(i & 1), channel, i & 0x7f, DEFAULT_VELOCITY, i + 1L);
+                    }
+                }, "bench-writer-" + w);
+            }
+            Thread reader = new Thread(() -> {
+                int checked = 0;
+                while (checked < total) {
+                    int size = events.size();
+                    for (; checked < size; checked++) {
+                        if (events.getTime(checked) == 0) torn.incrementAndGet();
+                    }
+                    Thread.yield();
+                }
+            }, "bench-reader");
+            long started = System.nanoTime();
+            reader.start();
+            for (Thread writer : writers) writer.start();
+            for (Thread writer : writers) writer.join();
+            reader.join();
+            long nanos = System.nanoTime() - started;
+            
+            int failures = events.size() == total ? 0 : 1;
+            long[] expected = new long[STRESS_WRITERS];
+            for (int i = 0; i < events.size(); i++) {
+                int channel = events.getChannel(i);
+                long sequence = events.getTime(i);
+                if (channel >= STRESS_WRITERS) {
+                    failures++;
+                } else if (sequence != ++expected[channel] || events.getNote(i) != ((sequence - 1) & 0x7f)) {
+                    failures++;
+                    expected[channel] = sequence;
+                }
+            }
+            failures += torn.get();
+            System.out.println(String.format("%-30s %d events in %d ms, %s",
+                    "eventlog.stress/writers=" + STRESS_WRITERS, events.size(), nanos / 1_000_000,
+                    failures == 0 ? "none lost or reordered" : failures + " lost, reordered or torn"));
+            return failures == 0 ? 0 : 1;
+        }
+        
+        // Folding passes of a one-voice take onto a fresh loop, one tick's worth of input at a
+        // time as the loop engine does; one operation is one merged event, so the figure
+        // should not grow with the number of layers
+        private static Case overdubMerge(int layers) {
+            EventLog pass = syntheticSession(OVERDUB_LOOP_SECONDS, 1);
+            long loopFrames = (long)OVERDUB_LOOP_SECONDS * SAMPLE_RATE;
+            return () -> {
+                LoopTake take = new LoopTake(loopFrames);
+                for (int layer = 0; layer < layers; layer++) {
+                    for (int i = 0; i < pass.size(); i += 2) take.merge(pass, i, Math.min(i + 2, pass.size()));
+                }
+                return (long)layers * pass.size();
+            };
+        }
+        
+        // Scheduling a layered take in loop-engine windows; one operation is one event played
+        private static Case overdubPlay(int layers) {
+            EventLog pass = syntheticSession(OVERDUB_LOOP_SECONDS, 1);
+            long loopFrames = (long)OVERDUB_LOOP_SECONDS * SAMPLE_RATE;
+            LoopTake take = new LoopTake(loopFrames);
+            for (int layer = 0; layer < layers; layer++) take.merge(pass, 0, pass.size());
+            long window = SAMPLE_RATE / 100;
+            long[] checksum = new long[1];
+            return () -> {
+                for (long position = 0; position < loopFrames; position += window) {
+                    take.forEachIn(position, Math.min(position + window, loopFrames),
+                            (type, channel, note, velocity, time) -> checksum[0] += note);
+                }
+                return take.size();
+            };
+        }
+        
+        // Round trip of an exported take through each archive format. Prints the compression
+        // ratio and encode and decode speed, and counts a failure unless FLAC decodes
+        // bit-exactly and ADPCM decodes to exactly what its encoder predicted.
+        private static int codecs(int seconds, Path scratch, Properties baseline, Properties results) 
+                throws Exception {
+            ExportEngine.renderToWav(syntheticSession(seconds, 8), 0, SAMPLE_RATE, scratch.toString(), null, null);
+            short[] source = readSamples(scratch);
+            int failures = 0;
+            for (int format : new int[] {AudioFiles.FORMAT_FLAC, AudioFiles.FORMAT_IMA_ADPCM}) {
+                String name = "codec." + AudioFiles.getName(format) + "/len=" + seconds;
+                Path encoded = Files.createTempFile("vpdaw-bench", AudioFiles.getExtension(format));
+                try {
+                    measure(name + "/encode", encode(source, encoded, format), baseline, results);
+                    measure(name + "/decode", decode(encoded), baseline, results);
+                    
+                    short[] decoded = readSamples(encoded);
+                    short[] expected = format == AudioFiles.FORMAT_FLAC ? source : adpcmReference(source);
+                    boolean exact = Arrays.equals(decoded, expected);
+                    System.out.println(String.format("%-30s %.2f:1, encode %.0fx, decode %.0fx real time, round trip %s",
+                            name, source.length * 2.0 / Files.size(encoded), 
+                            realTime(results.getProperty(name + "/encode")), realTime(results.getProperty(name + "/decode")),
+                            exact ? "bit-exact" : "MISMATCH"));
+                    if (!exact) failures++;
+                } finally {
+                    Files.deleteIfExists(encoded);
+                    Files.deleteIfExists(peaksPathFor(encoded.toString()));
+                }
+            }
+            return failures;
+        }
+        
+        // Time to first sample for a saved recording: WavPlayer's open, seek, decode and first
+        // buffer read, without the output line, which needs an audio device. Reports p50 and p99
+        // from the start of the file and from its middle, after WAV_START_WARMUP discarded runs.
+        // Counts a failure if a first buffer comes back empty.
+        private static int wavStart(int seconds) throws Exception {
+            Path saved = Files.createTempFile("vpdaw-bench", ".wav");
+            int failures = 0;
+            try {
+                long frames = ExportEngine.renderToWav(syntheticSession(seconds, 8), 0, SAMPLE_RATE, 
+                        saved.toString(), null, null).frames;
+                byte[] buffer;
+                try (AudioInputStream in = WavPlayer.openAt(saved, 0)) {
+                    buffer = new byte[WavPlayer.bufferBytes(in.getFormat())];
+                }
+                for (long startFrame : new long[] {0, frames / 2}) {
+                    LatencyHistogram firstSample = new LatencyHistogram();
+                    int empty = 0;
+                    for (int run = 0; run < WAV_START_WARMUP + WAV_START_RUNS; run++) {
+                        long started = System.nanoTime();
+                        int read;
+                        try (AudioInputStream in = WavPlayer.openAt(saved, startFrame)) {
+                            read = in.read(buffer);
+                        }
+                        if (run < WAV_START_WARMUP) continue;
+                        firstSample.record((System.nanoTime() - started) / 1000);
+                        if (read <= 0) empty++;
+                    }
+                    System.out.println(String.format("%-30s %d opens, first sample p50 %d us, p99 %d us%s",
+                            "wav.start/from=" + (startFrame == 0 ? "start" : "middle"), WAV_START_RUNS,
+                            firstSample.getPercentile(50), firstSample.getPercentile(99), 
+                            empty == 0 ? "" : ", " + empty + " empty FAILED"));
+                    if (empty > 0) failures++;
+                }
+            } finally {
+                Files.deleteIfExists(saved);
+                Files.deleteIfExists(peaksPathFor(saved.toString()));
+            }
+            return failures;
+        }
+        
+        // Renders a take serially and on a ForkJoinPool, dry and through the default effects
+        // chain, and counts a failure unless the SHA-256 of the PCM matches in each case
+        private static int parallelRender(int seconds) throws Exception {
+            NoteTimeline timeline = NoteTimeline.fromEvents(syntheticSession(seconds, 8), 0, SAMPLE_RATE, SAMPLE_RATE);
+            ForkJoinPool pool = new ForkJoinPool(4);
+            int failures = 0;
+            try {
+                for (boolean effects : new boolean[] {false, true}) {
+                    OfflineRenderer serial = new OfflineRenderer(timeline, SAMPLE_RATE, RENDER_BLOCK_FRAMES);
+                    OfflineRenderer parallel = new OfflineRenderer(timeline, SAMPLE_RATE, RENDER_BLOCK_FRAMES);
+                    if (effects) {
+                        serial.setEffects(EffectsChain.createDefault(SAMPLE_RATE, RENDER_BLOCK_FRAMES));
+                        parallel.setEffects(EffectsChain.createDefault(SAMPLE_RATE, RENDER_BLOCK_FRAMES));
+                    }
+                    DigestWriter serialOut = new DigestWriter();
+                    DigestWriter parallelOut = new DigestWriter();
+                    serial.render(serialOut);
+                    parallel.renderParallel(parallelOut, pool);
+                    String serialHash = serialOut.hex();
+                    boolean same = serialOut.getFrames() == parallelOut.getFrames() 
+                            && serialHash.equals(parallelOut.hex());
+                    System.out.println(String.format("%-30s %d segments, sha256 %s, parallel %s",
+                            "render.parallel/len=" + seconds + (effects ? "/fx" : ""), serial.getSegmentCount(),
+                            serialHash.substring(0, 16), same ? "identical" : "MISMATCH"));
+                    if (!same) failures++;
+                }
+            } finally {
+                pool.shutdown();
+            }
+            return failures;
+        }
+        
+        // Renders a one-hour take with --render in a child JVM whose heap is capped at
+        // SOAK_HEAP, so anything that grows with the length of the take runs out of memory.
+        // Counts a failure unless the child exits cleanly having written the whole hour.
+        private static int soak() throws Exception {
+            Path session = Files.createTempFile("vpdaw-soak", SessionFile.EXTENSION);
+            Path wav = Files.createTempFile("vpdaw-soak", ".wav");
+            try {
+                SessionFile.write(session, syntheticSession(SOAK_SECONDS, 8), 0, SAMPLE_RATE, 120);
+                List<String> command = new ArrayList<>();
+                command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                for (String argument : java.lang.management.ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                    if (!argument.startsWith("-Xmx") && !argument.startsWith("-XX:MaxHeapSize")) command.add(argument);
+                }
+                command.addAll(Arrays.asList(SOAK_HEAP, "-cp", System.getProperty("java.class.path"), 
+                        VP_DAW.class.getName(), "--render", session.toString(), wav.toString()));
+                
+                long started = System.nanoTime();
+                Process child = new ProcessBuilder(command).redirectErrorStream(true).start();
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                try (InputStream in = child.getInputStream()) {
+                    byte[] buffer = new byte[4096];
+                    for (int read; (read = in.read(buffer)) > 0; ) output.write(buffer, 0, read);
+                }
+                int status = child.waitFor();
+                long seconds = (System.nanoTime() - started) / 1_000_000_000L;
+                
+                long frames = 0;
+                if (status == 0) {
+                    try (AudioInputStream in = AudioFiles.openPcm(wav)) {
+                        frames = in.getFrameLength();
+                    }
+                }
+                boolean ok = status == 0 && frames >= (long)SOAK_SECONDS * SAMPLE_RATE;
+                System.out.println(String.format("%-30s %.1f min rendered under %s in %d s%s", 
+                        "soak/len=" + SOAK_SECONDS, frames / (60.0 * SAMPLE_RATE), SOAK_HEAP, seconds, 
+                        ok ? "" : ", FAILED with exit status " + status));
+                if (!ok) System.out.print(output.toString(StandardCharsets.UTF_8.name()));
+                return ok ? 0 : 1;
+            } finally {
+                Files.deleteIfExists(session);
+                Files.deleteIfExists(wav);
+                Files.deleteIfExists(peaksPathFor(wav.toString()));
+            }
+        }
+        
+        // Onsets jittered by up to 45% of a grid step either side, one per step, at tempos whose
+        // steps fall between frames, over 40 to 80 minutes. Every snapped onset must land on
+        // its own step within half a frame of the exact grid time, and every note must keep
+        // its duration; counts a failure otherwise.
+        private static int quantizerAccuracy() {
+            Random random = new Random(7);
+            int failures = 0;
+            for (int tempo : QUANTIZE_TEMPOS) {
+                double step = SAMPLE_RATE * 60.0 / (tempo * QUANTIZE_STEPS_PER_BEAT);
+                EventLog events = new EventLog();
+                long[] durations = new long[QUANTIZE_ONSETS];
+                for (int k = 0; k < QUANTIZE_ONSETS; k++) {
+                    long onset = Math.max(0, Math.round(k * step + (random.nextDouble() * 0.9 - 0.45) * step));
+                    durations[k] = 1 + (long)(random.nextDouble() * 2 * step);
+                    int note = 36 + k % 48;
+                    events.append(EventLog.NOTE_ON, note, DEFAULT_VELOCITY, onset);
+                    events.append(EventLog.NOTE_OFF, note, 0, onset + durations[k]);
+                }
+                EventLog quantized = Quantizer.quantize(events, 0, SAMPLE_RATE, tempo, QUANTIZE_STEPS_PER_BEAT);
+                
+                double worst = 0;
+                int misplaced = 0;
+                int stretched = 0;
+                int onsets = 0;
+                long[] onAt = new long[128];
+                int[] stepOf = new int[128];
+                for (int i = 0; i < quantized.size(); i++) {
+                    int note = quantized.getNote(i);
+                    long time = quantized.getTime(i);
+                    if (quantized.getType(i) == EventLog.NOTE_ON) {
+                        // One onset per step, so the n-th onset belongs on step n
+                        worst = Math.max(worst, Math.abs(time - onsets * step));
+                        if (Math.round(time / step) != onsets) misplaced++;
+                        onAt[note] = time;
+                        stepOf[note] = onsets++;
+                    } else if (time - onAt[note] != durations[stepOf[note]]) {
+                        stretched++;
+                    }
+                }
+                boolean ok = onsets == QUANTIZE_ONSETS && worst <= 0.5 && misplaced == 0 && stretched == 0;
+                System.out.println(String.format("%-30s %d onsets, max %.2f frames off grid, %d misplaced, %d stretched%s",
+                        "quantize.accuracy/tempo=" + tempo, onsets, worst, misplaced, stretched, ok ? "" : " FAILED"));
+                if (!ok) failures++;
+            }
+            return failures;
+        }
+        
+        // Quantizes RENDER_ONSETS jittered notes on every other grid step, renders them through
+        // the Mixer and finds each onset in the output as the first non-zero sample after
+        // silence. Counts a failure unless every note is heard within one frame of the frame it
+        // was scheduled on; a voice starts at zero phase, so it sounds one frame in.
+        private static int renderedOnsets() {
+            Random random = new Random(11);
+            int failures = 0;
+            for (int tempo : QUANTIZE_TEMPOS) {
+                double step = SAMPLE_RATE * 60.0 / (tempo * QUANTIZE_STEPS_PER_BEAT);
+                long duration = (long)(step / 2);
+                EventLog events = new EventLog();
+                for (int k = 0; k < RENDER_ONSETS; k++) {
+                    long onset = Math.max(0, Math.round((2 * k + random.nextDouble() * 0.9 - 0.45) * step));
+                    events.append(EventLog.NOTE_ON, 48 + k % 24, DEFAULT_VELOCITY, onset);
+                    events.append(EventLog.NOTE_OFF, 48 + k % 24, 0, onset + duration);
+                }
+                EventLog quantized = Quantizer.quantize(events, 0, SAMPLE_RATE, tempo, QUANTIZE_STEPS_PER_BEAT);
+                List<Long> scheduled = new ArrayList<>();
+                for (int i = 0; i < quantized.size(); i++) {
+                    if (quantized.getType(i) == EventLog.NOTE_ON) scheduled.add(quantized.getTime(i));
+                }
+                
+                NoteTimeline timeline = NoteTimeline.fromEvents(quantized, 0, SAMPLE_RATE, SAMPLE_RATE);
+                Mixer mixer = new Mixer(timeline, SAMPLE_RATE, RENDER_BLOCK_FRAMES);
+                float[] block = new float[RENDER_BLOCK_FRAMES];
+                List<Long> heard = new ArrayList<>();
+                long silent = Long.MAX_VALUE; // frames of silence before the current sample
+                long length = timeline.getLengthFrames();
+                for (long position = 0; position < length; position += RENDER_BLOCK_FRAMES) {
+                    int count = (int)Math.min(RENDER_BLOCK_FRAMES, length - position);
+                    mixer.render(block, position, count);
+                    for (int i = 0; i < count; i++) {
+                        if (block[i] == 0f) {
+                            if (silent < Long.MAX_VALUE) silent++;
+                        } else {
+                            if (silent > Mixer.RAMP_FRAMES) heard.add(position + i);
+                            silent = 0;
+                        }
+                    }
+                }
+                
+                long worst = 0;
+                for (int k = 0; k < Math.min(heard.size(), scheduled.size()); k++) {
+                    worst = Math.max(worst, Math.abs(heard.get(k) - scheduled.get(k)));
+                }
+                boolean ok = heard.size() == scheduled.size() && scheduled.size() == RENDER_ONSETS && worst <= 1;
+                System.out.println(String.format("%-30s %d of %d onsets heard, max %d frames from schedule%s",
+                        "quantize.render/tempo=" + tempo, heard.size(), scheduled.size(), worst, ok ? "" : " FAILED"));
+                if (!ok) failures++;
+            }
+            return failures;
+        }
+        
+        // Fires SCHEDULER_NOTES_PER_S note-ons, each with a note-off SCHEDULER_NOTE_MS later,
+        // through a NoteScheduler and reports how late tasks ran over SCHEDULER_SECONDS after a
+        // one-second warm-up. Counts a failure if any task is lost or p99 lateness exceeds
+        // SCHEDULER_P99_LIMIT_US.
+        private static int schedulerLateness() throws InterruptedException {
+            int notes = SCHEDULER_NOTES_PER_S * (SCHEDULER_SECONDS + 1);
+            LatencyHistogram lateness = new LatencyHistogram();
+            NoteScheduler scheduler = new NoteScheduler(lateness);
+            CountDownLatch done = new CountDownLatch(2 * notes);
+            long interval = 1_000_000_000L / SCHEDULER_NOTES_PER_S;
+            long start = System.nanoTime() + 100_000_000L;
+            try {
+                for (int k = 0; k < notes; k++) {
+                    long on = start + k * interval;
+                    scheduler.schedule(on, done::countDown);
+                    scheduler.schedule(on + SCHEDULER_NOTE_MS * 1_000_000L, done::countDown);
+                }
+                scheduler.schedule(start + 1_000_000_000L, lateness::reset);
+                boolean complete = done.await(SCHEDULER_SECONDS + 10, TimeUnit.SECONDS);
+                long p50 = scheduler.getLatenessMicros(50);
+                long p99 = scheduler.getLatenessMicros(99);
+                boolean ok = complete && p99 <= SCHEDULER_P99_LIMIT_US;
+                System.out.println(String.format("%-30s %d tasks, lateness p50 %d us, p99 %d us%s",
+                        "scheduler/notes_per_s=" + SCHEDULER_NOTES_PER_S, scheduler.getScheduledCount(),
+                        p50, p99, ok ? "" : " FAILED"));
+                return ok ? 0 : 1;
+            } finally {
+                scheduler.shutdown();
+            }
+        }
+
+        // Startup with a folder of CATALOG_ENTRIES recordings already in the journal: how long
+        // until every entry has reached the listener, and how long the reconcile pass that
+        // follows takes when nothing changed on disk. Counts a failure if the list never fills.
+        private static int catalogStartup() throws Exception {
+            Path directory = Files.createTempDirectory("vpdaw-bench");
+            try {
+                Path first = directory.resolve("recording_0.wav");
+                try (FileChannel channel = FileChannel.open(first, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    writeWavHeader(channel, SAMPLE_RATE, 16, 1, 0);
+                }
+                byte[] empty = Files.readAllBytes(first);
+                List<String> journal = new ArrayList<>(CATALOG_ENTRIES);
+                for (int i = 0; i < CATALOG_ENTRIES; i++) {
+                    Path file = directory.resolve("recording_" + i + ".wav");
+                    if (i > 0) Files.write(file, empty);
+                    long modified = Files.getLastModifiedTime(file).toMillis();
+                    journal.add(new RecordingCatalog.Entry(file.getFileName().toString(), empty.length, 
+                            modified, modified, 0, SAMPLE_RATE, 0).toLine());
+                }
+                Files.write(directory.resolve(RecordingCatalog.FILE_NAME), journal, StandardCharsets.UTF_8);
+                
+                CountDownLatch listed = new CountDownLatch(CATALOG_ENTRIES);
+                Thread[] worker = new Thread[1];
+                RecordingCatalog catalog = new RecordingCatalog(directory);
+                long started = System.nanoTime();
+                catalog.start(new RecordingCatalog.Listener() {
+                    public void added(List<RecordingCatalog.Entry> entries) {
+                        worker[0] = Thread.currentThread();
+                        for (int i = 0; i < entries.size(); i++) listed.countDown();
+                    }
+                    
+                    public void removed(String name) {}
+                });
+                boolean complete = listed.await(CATALOG_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                long listedNanos = System.nanoTime() - started;
+                // Stopping lets the reconcile pass finish, then the thread exits
+                catalog.stop();
+                if (worker[0] != null) worker[0].join(CATALOG_TIMEOUT_MS);
+                long totalNanos = System.nanoTime() - started;
+                
+                System.out.println(String.format("%-30s listed in %d ms, reconciled in %d ms%s",
+                        "catalog.startup/entries=" + CATALOG_ENTRIES, listedNanos / 1_000_000, 
+                        (totalNanos - listedNanos) / 1_000_000, complete ? "" : ", INCOMPLETE"));
+                return complete ? 0 : 1;
+            } finally {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                    for (Path file : files) Files.delete(file);
+                }
+                Files.delete(directory);
+            }
+        }
+        
+        // Hashes rendered PCM as little-endian 16-bit, the bytes a WAV export would hold
+        private static final class DigestWriter implements SampleWriter {
+            private final MessageDigest digest;
+            private final byte[] bytes = new byte[RENDER_BLOCK_FRAMES * 2];
+            private long frames;
+            
+            DigestWriter() throws NoSuchAlgorithmException {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            
+            @Override
+            public void write(short[] samples, int count) {
+                for (int i = 0; i < count; i++) {
+                    bytes[2 * i] = (byte)samples[i];
+                    bytes[2 * i + 1] = (byte)(samples[i] >> 8);
+                }
+                digest.update(bytes, 0, count * 2);
+                frames += count;
+            }
+            
+            @Override public void setPeaks(PeakSummary.Builder peaks) {}
+            @Override public long getFrames() { return frames; }
+            @Override public void close() {}
+            
+            String hex() {
+                StringBuilder text = new StringBuilder();
+                for (byte b : digest.digest()) text.append(String.format("%02x", b));
+                return text.toString();
+            }
+        }
+        
+        private static double realTime(String nanosPerFrame) {
+            return 1e9 / (Double.parseDouble(nanosPerFrame) * SAMPLE_RATE);
+        }
+        
+        // Encoding in render-sized blocks, as an export does; one operation is one frame
+        private static Case encode(short[] source, Path target, int format) {
+            short[] block = new short[RENDER_BLOCK_FRAMES];
+            return () -> {
+                try (SampleWriter out = AudioFiles.openWriter(target, format, SAMPLE_RATE, RENDER_BLOCK_FRAMES)) {
+                    for (int offset = 0; offset < source.length; offset += RENDER_BLOCK_FRAMES) {
+                        int count = Math.min(RENDER_BLOCK_FRAMES, source.length - offset);
+                        System.arraycopy(source, offset, block, 0, count);
+                        out.write(block, count);
+                    }
+                }
+                return source.length;
+            };
+        }
+        
+        // Streaming decode as playback does; one operation is one frame
+        private static Case decode(Path file) {
+            byte[] buffer = new byte[RENDER_BLOCK_FRAMES * 2];
+            return () -> {
+                long bytes = 0;
+                try (AudioInputStream in = AudioFiles.openPcm(file)) {
+                    int read;
+                    while ((read = in.read(buffer)) > 0) bytes += read;
+                }
+                return bytes / 2;
+            };
+        }
+        
+        private static short[] readSamples(Path file) throws Exception {
+            try (AudioInputStream in = AudioFiles.openPcm(file)) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[RENDER_BLOCK_FRAMES * 2];
+                int read;
+                while ((read = in.read(buffer)) > 0) bytes.write(buffer, 0, read);
+                ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+                short[] samples = new short[data.remaining() / 2];
+                data.asShortBuffer().get(samples);
+                return samples;
+            }
+        }
+        
+        // What an IMA ADPCM decoder must produce for source, straight from the codec core
+        private static short[] adpcmReference(short[] source) {
+            short[] expected = new short[source.length];
+            byte[] block = new byte[ImaAdpcm.BLOCK_ALIGN];
+            int[] state = new int[1];
+            for (int offset = 0; offset < source.length; offset += ImaAdpcm.SAMPLES_PER_BLOCK) {
+                int count = Math.min(ImaAdpcm.SAMPLES_PER_BLOCK, source.length - offset);
+                ImaAdpcm.encodeBlock(source, offset, count, state, block);
+                ImaAdpcm.decodeBlock(block, count, expected, offset);
+            }
+            return expected;
+        }
+        
+        // Mixing the built-in voices; one operation is one frame
+        private static Case mix(EventLog session) {
+            NoteTimeline timeline = NoteTimeline.fromEvents(session, 0, SAMPLE_RATE, SAMPLE_RATE);
+            return () -> {
+                Mixer mixer = new Mixer(timeline, SAMPLE_RATE, RENDER_BLOCK_FRAMES);
+                float[] block = new float[RENDER_BLOCK_FRAMES];
+                long length = timeline.getLengthFrames();
+                for (long position = 0; position < length; position += RENDER_BLOCK_FRAMES) {
+                    mixer.render(block, position, (int)Math.min(RENDER_BLOCK_FRAMES, length - position));
+                }
+                return length;
+            };
+        }
+        
+        // The path the mixer replaced: Math.sin per sample for every sounding note, summed and
+        // written little-endian with ByteBuffer.putShort. Renders the same timeline block by
+        // block, so one operation is one output frame as in mix.
+        private static Case sineTones(EventLog session) {
+            NoteTimeline timeline = NoteTimeline.fromEvents(session, 0, SAMPLE_RATE, SAMPLE_RATE);
+            double[] frequencies = new double[timeline.size()];
+            for (int n = 0; n < frequencies.length; n++) {
+                frequencies[n] = 440.0 * Math.pow(2, (timeline.getNote(n) - 69) / 12.0);
+            }
+            double[] block = new double[RENDER_BLOCK_FRAMES];
+            ByteBuffer buffer = ByteBuffer.allocate(RENDER_BLOCK_FRAMES * 2).order(ByteOrder.LITTLE_ENDIAN);
+            return () -> {
+                long length = timeline.getLengthFrames();
+                int first = 0;
+                for (long position = 0; position < length; position += RENDER_BLOCK_FRAMES) {
+                    int count = (int)Math.min(RENDER_BLOCK_FRAMES, length - position);
+                    long end = position + count;
+                    Arrays.fill(block, 0, count, 0);
+                    while (first < timeline.size() && timeline.getEndFrame(first) <= position) first++;
+                    for (int n = first; n < timeline.size() && timeline.getStartFrame(n) < end; n++) {
+                        long start = timeline.getStartFrame(n);
+                        long from = Math.max(position, start);
+                        long to = Math.min(end, timeline.getEndFrame(n));
+                        double gain = Short.MAX_VALUE * timeline.getVelocity(n) / 127.0;
+                        for (long frame = from; frame < to; frame++) {
+                            double angle = 2.0 * Math.PI * (frame - start) * frequencies[n] / SAMPLE_RATE;
+                            block[(int)(frame - position)] += gain * Math.sin(angle);
+                        }
+                    }
+                    buffer.clear();
+                    for (int i = 0; i < count; i++) {
+                        buffer.putShort((short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, block[i])));
+                    }
+                }
+                return length;
+            };
+        }
+        
+        // Output samples per second and bytes allocated per sample for two measured cases
+        private static void compareThroughput(String name, String first, String second, Properties results) {
+            StringBuilder line = new StringBuilder(String.format("%-30s", name));
+            for (String measured : new String[] {first, second}) {
+                double samplesPerSecond = 1e9 / Double.parseDouble(results.getProperty(measured));
+                Double bytes = bytesPerOp.get(measured);
+                line.append(String.format(" %s %.1fM samples/s %s B/sample,",
+                        measured.substring(0, measured.indexOf('/')), samplesPerSecond / 1e6,
+                        bytes != null ? String.format("%.2f", bytes) : "n/a"));
+            }
+            line.setLength(line.length() - 1);
+            System.out.println(line);
+        }
+        
+        // The full export path including disk writes and peaks; one operation is one frame
+        private static Case export(EventLog session, Path scratch) {
+            return () -> ExportEngine.renderToWav(session, 0, SAMPLE_RATE, scratch.toString(), null, null).frames;
+        }
+        
+        // One operation is one render block of noise through the processor. The noise is
+        // generated once up front so only the copy into the work buffer is timed with it.
+        private static Case effect(AudioProcessor processor) {
+            float[] noise = new float[RENDER_BLOCK_FRAMES];
+            Random random = new Random(1);
+            for (int i = 0; i < noise.length; i++) noise[i] = random.nextFloat() * 0.5f - 0.25f;
+            float[] block = new float[RENDER_BLOCK_FRAMES];
+            return () -> {
+                System.arraycopy(noise, 0, block, 0, block.length);
+                processor.process(block, 0, block.length);
+                return 1;
+            };
+        }
+        
+        private static Case wavHeader(Path scratch) {
+            int count = 10_000;
+            return () -> {
+                try (FileChannel channel = FileChannel.open(scratch, StandardOpenOption.WRITE)) {
+                    for (int i = 0; i < count; i++) {
+                        writeWavHeader(channel, SAMPLE_RATE, 16, 1, i * 2L);
+                    }
+                }
+                return count;
+            };
+        }
+        
+        // Every pixel of the default three-octave keyboard
+        private static Case hitTest() {
+            KeyboardLayout keyboard = new KeyboardLayout();
+            KeyHitMap map = new KeyHitMap(keyboard.whiteKeys, keyboard.whiteKeyNotes, 
+                    keyboard.blackKeys, keyboard.blackKeyNotes);
+            int width = keyboard.whiteKeys.length * WHITE_KEY_WIDTH;
+            return () -> {
+                int hits = 0;
+                for (int y = 0; y < WHITE_KEY_HEIGHT; y++) {
+                    for (int x = 0; x < width; x++) {
+                        if (map.noteAt(x, y) >= 0) hits++;
+                    }
+                }
+                if (hits == 0) throw new IllegalStateException("No keys hit");
+                return (long)width * WHITE_KEY_HEIGHT;
+            };
+        }
+        
+        // Pressing `held` keys, flushing them into the canvas back buffer and painting the
+        // canvas into an offscreen image, then the same for their release. One operation is
+        // one key pressed or released.
+        private static Case paint(int held) {
+            KeyboardLayout keyboard = new KeyboardLayout();
+            PianoCanvas canvas = new PianoCanvas(keyboard);
+            int keys = keyboard.whiteKeys.length + keyboard.blackKeys.length;
+            int[] notes = new int[Math.min(held, keys)];
+            for (int i = 0; i < notes.length; i++) notes[i] = 48 + i * 7 % keys; // spread across the keyboard
+            Dimension size = canvas.getPreferredSize();
+            BufferedImage screen = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = screen.createGraphics();
+            return () -> {
+                for (boolean on : new boolean[] {true, false}) {
+                    for (int note : notes) canvas.markNote(note, on);
+                    canvas.flush();
+                    canvas.paint(g);
+                }
+                return notes.length * 2;
+            };
+        }
+        
+        private static int[] parseList(String list) {
+            String[] parts = list.split(",");
+            int[] values = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Integer.parseInt(parts[i].trim());
+                if (values[i] < 1) throw new NumberFormatException(parts[i]);
+            }
+            return values;
+        }
+    }
+    
+    // Wavetable sine oscillator. The phase is carried between render calls,
+    // and samples are added straight into a caller-owned float block.
+    static class Oscillator {
+        private static final int TABLE_SIZE = 4096;
+        private static final float[] SINE_TABLE = new float[TABLE_SIZE + 1];
+        
+        static {
+            // One extra guard point so interpolation never wraps inside the loop
+            for (int i = 0; i <= TABLE_SIZE; i++) {
+                SINE_TABLE[i] = (float)Math.sin(2.0 * Math.PI * i / TABLE_SIZE);
+            }
+        }
+        
+        private double phase;     // position in the table, 0 <= phase < TABLE_SIZE
+        private double increment; // table steps per sample
+        
+        public void setFrequency(double frequency, int sampleRate) {
+            increment = frequency * TABLE_SIZE / sampleRate;
+        }
+        
+        public void reset() { phase = 0; }
+        
+        // Sets the phase in cycles; only the fractional part is used
+        public void setPhase(double cycles) {
+            phase = (cycles - Math.floor(cycles)) * TABLE_SIZE;
+            if (phase >= TABLE_SIZE) phase = 0;
+        }
+        
+        public void render(float[] block, int offset, int count, float gain) {
+            double p = phase;
+            double step = increment;
+            for (int n = offset, end = offset + count; n < end; n++) {
+                int i = (int)p;
+                float a = SINE_TABLE[i];
+                block[n] += gain * (a + (SINE_TABLE[i + 1] - a) * (float)(p - i));
+                p += step;
+                if (p >= TABLE_SIZE) p -= TABLE_SIZE;
+            }
+            phase = p;
+        }
+    }
+    
+    // Background job queue for rendering and file I/O. A single worker keeps jobs in
+    // submission order (a rename never overtakes the save it depends on) and the bounded
+    // queue rejects work instead of piling it up. Progress and results are delivered
+    // on the AWT event thread; virtual threads are used where the JDK supports them.
+    static class JobQueue {
+        interface Job<T> {
+            T run(Progress progress) throws Exception;
+        }
+        
+        // Shared between a job and its submitter. Progress updates reach the listener
+        // on the event thread at most once per whole percent.
+        static class Progress {
+            private final IntConsumer listener;
+            private final AtomicInteger percent = new AtomicInteger(-1);
+            private volatile boolean cancelled;
+            
+            Progress(IntConsumer listener) {
+                this.listener = listener;
+            }
+            
+            public void update(double fraction) {
+                int value = (int)(Math.max(0, Math.min(1, fraction)) * 100);
+                int previous = percent.getAndSet(value);
+                if (value != previous && listener != null) {
+                    EventQueue.invokeLater(() -> listener.accept(value));
+                }
+            }
+            
+            public void cancel() { cancelled = true; }
+            public boolean isCancelled() { return cancelled; }
+        }
+        
+        private final ThreadPoolExecutor executor;
+        private final Set<Progress> outstanding = ConcurrentHashMap.newKeySet();
+        
+        public JobQueue(int capacity) {
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(capacity), workerFactory());
+        }
+        
+        public long getPendingCount() { return outstanding.size(); }
+        
+        // Throws RejectedExecutionException when the queue is full
+        public <T> Progress submit(Job<T> job, IntConsumer onProgress,
+                                   Consumer<T> onSuccess, 
+                                   Consumer<Exception> onError) {
+            Progress progress = new Progress(onProgress);
+            outstanding.add(progress);
+            try {
+                executor.execute(() -> {
+                    try {
+                        if (progress.isCancelled()) throw new CancellationException();
+                        T result = job.run(progress);
+                        EventQueue.invokeLater(() -> onSuccess.accept(result));
+                    } catch (Exception ex) {
+                        EventQueue.invokeLater(() -> onError.accept(ex));
+                    } finally {
+                        outstanding.remove(progress);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                outstanding.remove(progress);
+                throw ex;
+            }
+            return progress;
+        }
+        
+        public void cancelAll() {
+            for (Progress progress : outstanding) progress.cancel();
+        }
+        
+        // Stops accepting jobs and gives queued saves a chance to finish
+        public void shutdown(long timeoutMillis) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    cancelAll();
+                }
+            } catch (InterruptedException ex) {
+                cancelAll();
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private static ThreadFactory workerFactory() {
+            try {
+                // Thread.ofVirtual().name("jobs").factory(), looked up reflectively to run on older JDKs
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builder.getClass().getMethod("name", String.class).invoke(builder, "jobs");
+                return (ThreadFactory)builder.getClass().getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                return r -> {
+                    Thread thread = new Thread(r, "jobs");
+                    thread.setDaemon(true);
+                    return thread;
+                };
+            }
+        }
+    }
+    
+    // Measures how long the AWT event thread takes to pick up a probe event.
+    // Long stalls mean input and note triggering are being delayed.
+    static class EdtMonitor {
+        private static final long PROBE_INTERVAL_MS = 20;
+        private static final long TRACE_STALL_MICROS = 50_000;
+        private final LatencyHistogram stalls = Metrics.REGISTRY.histogram("edt.stall_us");
+        private final ScheduledExecutorService probe = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "edt-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        public EdtMonitor() {
+            probe.scheduleAtFixedRate(() -> {
+                long posted = System.nanoTime();
+                EventQueue.invokeLater(() -> {
+                    long stall = (System.nanoTime() - posted) / 1000;
+                    stalls.record(stall);
+                    if (stall >= TRACE_STALL_MICROS) Metrics.REGISTRY.trace("edt.stall_us", stall);
+                });
+            }, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        
+        // Event thread dispatch delay in microseconds at the given percentile (0-100)
+        public long getStallMicros(double percentile) { return stalls.getPercentile(percentile); }
+        public void reset() { stalls.reset(); }
+        
+        public void shutdown() { probe.shutdownNow(); }
+    }
+    
+    // Monotonic clock for stamping live input in sample frames. Based on System.nanoTime,
+    // so it has sub-sample resolution and never jumps with wall-clock adjustments.
+    static class SessionClock {
+        private final int sampleRate;
+        private volatile long startNanos = System.nanoTime();
+        
+        public SessionClock(int sampleRate) {
+            this.sampleRate = sampleRate;
+        }
+        
+        public void start() { startNanos = System.nanoTime(); }
+        
+        // Moves the clock back by frames (forward if negative), so that input stamped from now
+        // on follows another clock that has fallen that far behind this one
+        public void adjust(long frames) {
+            startNanos += frames / sampleRate * 1_000_000_000L + frames % sampleRate * 1_000_000_000L / sampleRate;
+        }
+        
+        public long nowFrames() { return toFrames(System.nanoTime()); }
+        
+        public long toFrames(long nanoTime) {
+            long elapsed = nanoTime - startNanos;
+            return elapsed / 1_000_000_000L * sampleRate + elapsed % 1_000_000_000L * sampleRate / 1_000_000_000L;
+        }
+    }
+    
+    // Offline pass that snaps note onsets to the tempo grid. Each NOTE_OFF moves with
+    // its NOTE_ON so durations are kept, and the result is re-sorted by time.
+    static class Quantizer {
+        public static EventLog quantize(EventSource events, long origin, int timeBase, int tempo, int stepsPerBeat) {
+            double step = timeBase * 60.0 / (tempo * stepsPerBeat);
+            int size = events.size();
+            long[] times = new long[size];
+            long[] shift = new long[16 * 128];
+            for (int i = 0; i < size; i++) {
+                int note = events.getChannel(i) << 7 | events.getNote(i);
+                long time = events.getTime(i);
+                if (events.getType(i) == EventLog.NOTE_ON) {
+                    long snapped = origin + Math.round(Math.round((time - origin) / step) * step);
+                    shift[note] = snapped - time;
+                }
+                times[i] = Math.max(origin, time + shift[note]);
+            }
+            
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            Arrays.sort(order, (x, y) -> Long.compare(times[x], times[y])); // stable
+            
+            EventLog quantized = new EventLog();
+            for (int i : order) {
+                quantized.append(events.getType(i), events.getChannel(i), events.getNote(i), 
+                        events.getVelocity(i), times[i]);
+            }
+            return quantized;
+        }
+    }
+    
+    // Key rectangles of the OCTAVES-wide keyboard starting at C3, and lookups from MIDI
+    // note to key. Built once and never changed, so it can be shared freely.
+    static final class KeyboardLayout {
+        final Rectangle[] whiteKeys;
+        final Rectangle[] blackKeys;
+        final int[] whiteKeyNotes; // MIDI note of each white key
+        final int[] blackKeyNotes; // MIDI note of each black key
+        final int[] noteToWhiteKey; // MIDI note -> index into whiteKeys, or -1
+        final int[] noteToBlackKey; // MIDI note -> index into blackKeys, or -1
+        
+        KeyboardLayout() {
+            whiteKeys = new Rectangle[7 * OCTAVES];
+            blackKeys = new Rectangle[5 * OCTAVES];
+            whiteKeyNotes = new int[7 * OCTAVES];
+            blackKeyNotes = new int[5 * OCTAVES];
+            noteToWhiteKey = new int[128];
+            noteToBlackKey = new int[128];
+            Arrays.fill(noteToWhiteKey, -1);
+            Arrays.fill(noteToBlackKey, -1);
+
+            int baseNote = 48; // Start at C3 (MIDI 48)
+
+            for (int o = 0; o < OCTAVES; o++) {
+                int whiteOffset = o * 7;
+                int blackOffset = o * 5;
+
+                // White keys
+                for (int i = 0; i < 7; i++) {
+                    int x = (whiteOffset + i) * WHITE_KEY_WIDTH;
+                    whiteKeys[whiteOffset + i] = new Rectangle(x, 0, WHITE_KEY_WIDTH, WHITE_KEY_HEIGHT);
+                    int midiNote = baseNote + o * 12 + WHITE_NOTES[i];
+                    whiteKeyNotes[whiteOffset + i] = midiNote;
+                    noteToWhiteKey[midiNote] = whiteOffset + i;
+                }
+
+                // Black keys (C#, D#, F#, G#, A#)
+                int blackIndex = 0;
+                for (int i = 0; i < 7; i++) {
+                    if (i != 2 && i != 6) { 
+                        int x = (whiteOffset + i) * WHITE_KEY_WIDTH + (WHITE_KEY_WIDTH - BLACK_KEY_WIDTH / 2);
+                        blackKeys[blackOffset + blackIndex] = new Rectangle(x, 0, BLACK_KEY_WIDTH, BLACK_KEY_HEIGHT);
+                        int midiNote = baseNote + o * 12 + BLACK_NOTES[blackIndex];
+                        blackKeyNotes[blackOffset + blackIndex] = midiNote;
+                        noteToBlackKey[midiNote] = blackOffset + blackIndex;
+                        blackIndex++;
+                    }
+                }
+            }
+        }
+    }
+    
+    // Maps canvas coordinates to MIDI notes in constant time. Each pixel column stores
+    // the white key under it and the black key (if any) that covers its upper part.
+    static class KeyHitMap {
+        private final int[] whiteNoteAt;
+        private final int[] blackNoteAt;
+        private final int whiteHeight;
+        private final int blackHeight;
+        
+        public KeyHitMap(Rectangle[] whiteKeys, int[] whiteNotes, Rectangle[] blackKeys, int[] blackNotes) {
+            int width = 0;
+            for (Rectangle r : whiteKeys) width = Math.max(width, r.x + r.width);
+            for (Rectangle r : blackKeys) if (r != null) width = Math.max(width, r.x + r.width);
+            
+            whiteNoteAt = new int[width];
+            blackNoteAt = new int[width];
+            Arrays.fill(whiteNoteAt, -1);
+            Arrays.fill(blackNoteAt, -1);
+            
+            int white = 0, black = 0;
+            for (int i = 0; i < whiteKeys.length; i++) {
+                Rectangle r = whiteKeys[i];
+                Arrays.fill(whiteNoteAt, r.x, r.x + r.width, whiteNotes[i]);
+                white = Math.max(white, r.y + r.height);
+            }
+            for (int i = 0; i < blackKeys.length; i++) {
+                Rectangle r = blackKeys[i];
+                if (r == null) continue;
+                Arrays.fill(blackNoteAt, r.x, r.x + r.width, blackNotes[i]);
+                black = Math.max(black, r.y + r.height);
+            }
+            whiteHeight = white;
+            blackHeight = black;
+        }
+        
+        // MIDI note under the point, or -1; black keys take priority where they overlap
+        public int noteAt(int x, int y) {
+            if (x < 0 || x >= whiteNoteAt.length || y < 0) return -1;
+            if (y < blackHeight && blackNoteAt[x] >= 0) return blackNoteAt[x];
+            return y < whiteHeight ? whiteNoteAt[x] : -1;
+        }
+    }
+    
+    // Capture pipeline shared by mouse, computer keyboard and MIDI input. A note sounds on
+    // the calling thread as soon as it arrives, so MIDI input never waits for the AWT event
+    // queue; the display hears about it afterwards. Takes are stamped with the nanoTime each
+    // handler read on entry rather than when the note was processed. Safe to call from any thread.
+    static class NoteInput {
+        private final MidiRouter router;
+        private final NoteListener display;
+        private final SessionClock clock;
+        private final AtomicIntegerArray noteChannels = new AtomicIntegerArray(128); // channel each held note sounds on, or -1
+        private final LatencyHistogram latency = Metrics.REGISTRY.histogram("input.note_on_latency_us");
+        private final Metrics.Counter played = Metrics.REGISTRY.counter("notes.played");
+        private volatile int channel;
+        private volatile EventLog take;
+        
+        public NoteInput(MidiRouter router, NoteListener display, SessionClock clock) {
+            this.router = router;
+            this.display = display;
+            this.clock = clock;
+            for (int note = 0; note < 128; note++) noteChannels.set(note, -1);
+        }
+        
+        // Channel for notes that start from now on
+        public void setChannel(int channel) { this.channel = channel; }
+        
+        // Log to append to while recording, or null
+        public void setTake(EventLog take) { this.take = take; }
+        
+        // inputNanos is the System.nanoTime at which the input happened
+        public void noteOn(int note, int velocity, long inputNanos) {
+            if (note < 0 || note > 127) return;
+            if (velocity <= 0) {
+                noteOff(note, inputNanos);
+                return;
+            }
+            int ch = channel;
+            // Each pitch is held on one channel at a time: a retrigger from another track
+            // releases the old voice first, since the note-off only names the pitch
+            int previous = noteChannels.getAndSet(note, ch);
+            if (previous >= 0 && previous != ch) release(previous, note, inputNanos);
+            router.noteOn(ch, note, velocity);
+            latency.record((System.nanoTime() - inputNanos) / 1000);
+            played.increment();
+            
+            EventLog log = take;
+            if (log != null) log.append(EventLog.NOTE_ON, ch, note, velocity, Math.max(0, clock.toFrames(inputNanos)));
+            display.noteChanged(note, true);
+        }
+        
+        public void noteOff(int note, long inputNanos) {
+            if (note < 0 || note > 127) return;
+            int ch = noteChannels.getAndSet(note, -1);
+            if (ch < 0) return; // already released by a retrigger on another channel
+            release(ch, note, inputNanos);
+            display.noteChanged(note, false);
+        }
+        
+        private void release(int ch, int note, long inputNanos) {
+            router.noteOff(ch, note);
+            EventLog log = take;
+            if (log != null) log.append(EventLog.NOTE_OFF, ch, note, 0, Math.max(0, clock.toFrames(inputNanos)));
+        }
+        
+        // Input-to-noteOn latency in microseconds at the given percentile (0-100)
+        public long getLatencyMicros(double percentile) { return latency.getPercentile(percentile); }
+    }
+    
+    // Plays the computer keyboard like a tracker: Z S X D C V G B H N J M is the lower
+    // octave and Q 2 W 3 E R 5 T 6 Y 7 U I the upper. Key repeat is ignored, so a note
+    // lasts exactly as long as its key is held.
+    static class KeyboardInput extends KeyAdapter {
+        private static final String LOWER_ROW = "ZSXDCVGBHNJM";
+        private static final String UPPER_ROW = "Q2W3ER5T6Y7UI";
+        
+        private final NoteInput input;
+        private final int baseNote;
+        private final int[] noteForKey = new int[256];
+        private final boolean[] down = new boolean[256];
+        
+        public KeyboardInput(NoteInput input, int baseNote) {
+            this.input = input;
+            this.baseNote = baseNote;
+            Arrays.fill(noteForKey, -1);
+            for (int i = 0; i < LOWER_ROW.length(); i++) noteForKey[LOWER_ROW.charAt(i)] = i;
+            for (int i = 0; i < UPPER_ROW.length(); i++) noteForKey[UPPER_ROW.charAt(i)] = 12 + i;
+        }
+        
+        @Override
+        public void keyPressed(KeyEvent e) {
+            long inputNanos = System.nanoTime();
+            int code = e.getKeyCode();
+            if (code >= noteForKey.length || noteForKey[code] < 0 || down[code]) return;
+            down[code] = true;
+            input.noteOn(baseNote + noteForKey[code], DEFAULT_VELOCITY, inputNanos);
+        }
+        
+        @Override
+        public void keyReleased(KeyEvent e) {
+            long inputNanos = System.nanoTime();
+            int code = e.getKeyCode();
+            if (code >= noteForKey.length || !down[code]) return;
+            down[code] = false;
+            input.noteOff(baseNote + noteForKey[code], inputNanos);
+        }
+    }
+    
+    // Receiver for external MIDI. Note messages go straight into the capture pipeline on
+    // the transmitting device's thread; a note-on with velocity 0 is a note-off.
+    static class MidiInput implements Receiver {
+        private final NoteInput input;
+        
+        public MidiInput(NoteInput input) {
+            this.input = input;
+        }
+        
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            long received = System.nanoTime();
+            if (!(message instanceof ShortMessage)) return;
+            ShortMessage sm = (ShortMessage)message;
+            if (sm.getCommand() == ShortMessage.NOTE_ON) {
+                input.noteOn(sm.getData1(), sm.getData2(), received);
+            } else if (sm.getCommand() == ShortMessage.NOTE_OFF) {
+                input.noteOff(sm.getData1(), received);
+            }
+        }
+        
+        @Override
+        public void close() {}
+        
+        // Connects every hardware or software MIDI source except sequencers and synthesizers.
+        // Returns the devices that were opened so they can be closed on exit.
+        static List<MidiDevice> connectAll(Receiver receiver) {
+            List<MidiDevice> opened = new ArrayList<>();
+            for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+                try {
+                    MidiDevice device = MidiSystem.getMidiDevice(info);
+                    if (device instanceof Sequencer || device instanceof Synthesizer) continue;
+                    if (device.getMaxTransmitters() == 0) continue;
+                    device.open();
+                    device.getTransmitter().setReceiver(receiver);
+                    opened.add(device);
+                } catch (MidiUnavailableException ex) {
+                    // busy or unplugged; skip it
+                }
+            }
+            return opened;
+        }
+    }
+    
+    // Virtual MIDI port: whatever is sent to one of its receivers comes out of all of its
+    // transmitters. Scripted players and tests drive the input path through it exactly as
+    // a hardware controller would.
+    static class LoopbackMidiDevice implements MidiDevice {
+        private static final Info INFO = new Info("VP_DAW Loopback", "VP_DAW", "Virtual MIDI loopback", "1.0") {};
+        
+        private final List<Transmitter> transmitters = new java.util.concurrent.CopyOnWriteArrayList<>();
+        private final List<Receiver> receivers = new java.util.concurrent.CopyOnWriteArrayList<>();
+        private final long openedNanos = System.nanoTime();
+        private volatile boolean open;
+        
+        @Override public Info getDeviceInfo() { return INFO; }
+        @Override public void open() { open = true; }
+        @Override public boolean isOpen() { return open; }
+        @Override public long getMicrosecondPosition() { return (System.nanoTime() - openedNanos) / 1000; }
+        @Override public int getMaxReceivers() { return -1; }
+        @Override public int getMaxTransmitters() { return -1; }
+        @Override public List<Receiver> getReceivers() { return new ArrayList<>(receivers); }
+        @Override public List<Transmitter> getTransmitters() { return new ArrayList<>(transmitters); }
+        
+        @Override
+        public void close() {
+            open = false;
+            for (Transmitter transmitter : transmitters) transmitter.close();
+            receivers.clear();
+        }
+        
+        @Override
+        public Receiver getReceiver() {
+            Receiver receiver = new Receiver() {
+                @Override
+                public void send(MidiMessage message, long timeStamp) {
+                    if (!open) throw new IllegalStateException("Loopback device is closed");
+                    for (Transmitter transmitter : transmitters) {
+                        Receiver target = transmitter.getReceiver();
+                        if (target != null) target.send(message, timeStamp);
+                    }
+                }
+                
+                @Override
+                public void close() { receivers.remove(this); }
+            };
+            receivers.add(receiver);
+            return receiver;
+        }
+        
+        @Override
+        public Transmitter getTransmitter() {
+            Transmitter transmitter = new Transmitter() {
+                private volatile Receiver receiver;
+                
+                @Override public void setReceiver(Receiver receiver) { this.receiver = receiver; }
+                @Override public Receiver getReceiver() { return receiver; }
+                @Override public void close() { transmitters.remove(this); }
+            };
+            transmitters.add(transmitter);
+            return transmitter;
+        }
+    }
+    
+    // Loop take built up by overdubbing. Events are stored by loop position in fixed-size
+    // time buckets, each a small sorted set of primitive arrays, so merging a pass touches
+    // only the buckets its notes land in and nothing is copied as layers pile up. Indexed
+    // access walks buckets through a prefix table and a cursor, so sequential playback is
+    // O(1) per event however many layers there are. A note held across the loop end is
+    // closed on the loop's last frame rather than having its NOTE_OFF wrap round to the
+    // start, so every NOTE_ON in the take is followed by its NOTE_OFF within the loop.
+    // All access is synchronized; the loop engine writes, and reads come from the loop
+    // engine or a finished-take playback.
+    static class LoopTake implements EventSource {
+        private static final int BUCKET_FRAMES = 4096;
+        
+        private final long loopFrames;
+        private final Bucket[] buckets;
+        private final int[] starts; // global index of each bucket's first event, plus the total
+        private final long[] openSince = new long[16 * 128]; // linear time of each held note, or -1
+        private int cursorBucket;
+        
+        private static final class Bucket {
+            long[] times = new long[8];
+            byte[] types = new byte[8];
+            byte[] channels = new byte[8];
+            byte[] notes = new byte[8];
+            byte[] velocities = new byte[8];
+            int size;
+            
+            // Keeps the bucket sorted by time; equal times stay in arrival order
+            void insert(long time, byte type, int channel, int note, int velocity) {
+                if (size == times.length) {
+                    int capacity = size * 2;
+                    times = Arrays.copyOf(times, capacity);
+                    types = Arrays.copyOf(types, capacity);
+                    channels = Arrays.copyOf(channels, capacity);
+                    notes = Arrays.copyOf(notes, capacity);
+                    velocities = Arrays.copyOf(velocities, capacity);
+                }
+                int low = 0, high = size;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (times[mid] <= time) low = mid + 1; else high = mid;
+                }
+                int at = low;
+                int moved = size - at;
+                if (moved > 0) {
+                    System.arraycopy(times, at, times, at + 1, moved);
+                    System.arraycopy(types, at, types, at + 1, moved);
+                    System.arraycopy(channels, at, channels, at + 1, moved);
+                    System.arraycopy(notes, at, notes, at + 1, moved);
+                    System.arraycopy(velocities, at, velocities, at + 1, moved);
+                }
+                times[at] = time;
+                types[at] = type;
+                channels[at] = (byte)channel;
+                notes[at] = (byte)note;
+                velocities[at] = (byte)velocity;
+                size++;
+            }
+        }
+        
+        // Receives events in loop order from forEachIn
+        interface Sink {
+            void event(byte type, int channel, int note, int velocity, long position);
+        }
+        
+        public LoopTake(long loopFrames) {
+            this.loopFrames = loopFrames;
+            int count = (int)((loopFrames + BUCKET_FRAMES - 1) / BUCKET_FRAMES);
+            buckets = new Bucket[count];
+            for (int i = 0; i < count; i++) buckets[i] = new Bucket();
+            starts = new int[count + 1];
+            Arrays.fill(openSince, -1);
+        }
+        
+        public long getLoopFrames() { return loopFrames; }
+        
+        // Folds events [from, to) of a linear log onto the loop; times are frames since the loop started.
+        // A NOTE_OFF in a later pass than its NOTE_ON is moved to the end of the loop.
+        public synchronized void merge(EventSource events, int from, int to) {
+            if (from >= to) return;
+            int first = buckets.length;
+            for (int i = from; i < to; i++) {
+                long time = events.getTime(i);
+                byte type = events.getType(i);
+                int key = events.getChannel(i) << 7 | events.getNote(i);
+                long position = Math.floorMod(time, loopFrames);
+                if (type == EventLog.NOTE_ON) {
+                    openSince[key] = time;
+                } else {
+                    long on = openSince[key];
+                    openSince[key] = -1;
+                    if (on >= 0 && Math.floorDiv(on, loopFrames) != Math.floorDiv(time, loopFrames)) {
+                        position = loopFrames - 1;
+                    }
+                }
+                first = Math.min(first, insert(position, type, events.getChannel(i), events.getNote(i), 
+                        events.getVelocity(i)));
+            }
+            reindex(first);
+        }
+        
+        // Ends notes still held when recording stops on the last frame of the loop
+        public synchronized void closeOpenNotes() {
+            int first = buckets.length;
+            for (int key = 0; key < openSince.length; key++) {
+                if (openSince[key] < 0) continue;
+                openSince[key] = -1;
+                first = Math.min(first, insert(loopFrames - 1, EventLog.NOTE_OFF, key >> 7, key & 0x7f, 0));
+            }
+            reindex(first);
+        }
+        
+        // Returns the bucket the event went into
+        private int insert(long position, byte type, int channel, int note, int velocity) {
+            int bucket = (int)(position / BUCKET_FRAMES);
+            buckets[bucket].insert(position, type, channel, note, velocity);
+            return bucket;
+        }
+        
+        private void reindex(int first) {
+            for (int b = first; b < buckets.length; b++) {
+                starts[b + 1] = starts[b] + buckets[b].size;
+            }
+        }
+        
+        // Visits every event with a loop position in [from, to)
+        public synchronized void forEachIn(long from, long to, Sink sink) {
+            int last = (int)Math.min(buckets.length - 1, (to - 1) / BUCKET_FRAMES);
+            for (int b = (int)(from / BUCKET_FRAMES); b <= last; b++) {
+                Bucket bucket = buckets[b];
+                for (int i = 0; i < bucket.size; i++) {
+                    long time = bucket.times[i];
+                    if (time >= from && time < to) {
+                        sink.event(bucket.types[i], bucket.channels[i], bucket.notes[i], bucket.velocities[i], time);
+                    }
+                }
+            }
+        }
+        
+        @Override public synchronized int size() { return starts[buckets.length]; }
+        @Override public synchronized byte getType(int i) { int at = locate(i); return buckets[cursorBucket].types[at]; }
+        @Override public synchronized int getChannel(int i) { int at = locate(i); return buckets[cursorBucket].channels[at]; }
+        @Override public synchronized int getNote(int i) { int at = locate(i); return buckets[cursorBucket].notes[at]; }
+        @Override public synchronized int getVelocity(int i) { int at = locate(i); return buckets[cursorBucket].velocities[at]; }
+        @Override public synchronized long getTime(int i) { int at = locate(i); return buckets[cursorBucket].times[at]; }
+        
+        // Moves the cursor to the bucket holding global index i and returns i's offset in it.
+        // Sequential reads stay in the same or the next bucket; anything else is a binary
+        // search for the last bucket starting at or before i, which is never an empty one.
+        private int locate(int i) {
+            int b = cursorBucket;
+            if (i < starts[b] || i >= starts[b + 1]) {
+                if (b + 1 < buckets.length && i >= starts[b + 1] && i < starts[b + 2]) {
+                    b++;
+                } else {
+                    int low = 0, high = buckets.length - 1;
+                    while (low < high) {
+                        int mid = (low + high + 1) >>> 1;
+                        if (starts[mid] <= i) low = mid; else high = mid - 1;
+                    }
+                    b = low;
+                }
+                cursorBucket = b;
+            }
+            return i - starts[b];
+        }
+    }
+    
+    // Metronome and loop playback driven by the synthesizer's own clock. A task on the
+    // shared NoteScheduler runs every TICK_MS and sends everything due in the next
+    // LOOKAHEAD_MS with a timestamp on the synthesizer's microsecond clock, so the
+    // synthesizer places each click and loop event itself and nothing drifts against its
+    // output. Beat n falls on frame n * 60 * rate / tempo, computed exactly rather than
+    // accumulated. When looping, input logged since the last tick is merged into the take
+    // in place, so a pass is heard from the next time round.
+    // Input is stamped on the SessionClock, which runs on System.nanoTime. Each tick samples
+    // how far it is ahead of the synthesizer clock, and once per pass (per bar when only the
+    // click runs) the session clock is moved back by the mean, so what is played lands where
+    // the click and loop were heard even as the two clocks drift apart.
+    static class LoopEngine {
+        private static final long TICK_MS = 10;
+        private static final long LOOKAHEAD_MS = 100;
+        private static final int CLICK_CHANNEL = 9;
+        private static final int CLICK_ACCENT = 76; // hi wood block
+        private static final int CLICK_BEAT = 77;   // low wood block
+        private static final long CLICK_FRAMES = SAMPLE_RATE / 20;
+        
+        private final Synthesizer synthesizer;
+        private final Receiver receiver;
+        private final SessionClock clock;
+        private final NoteScheduler scheduler;
+        private final int sampleRate;
+        private final Metrics.Counter passes = Metrics.REGISTRY.counter("loop.passes");
+        private final LatencyHistogram mergeMicros = Metrics.REGISTRY.histogram("loop.merge_us");
+        private final LatencyHistogram clockOffset = Metrics.REGISTRY.histogram("loop.clock_offset_us");
+        private Session session;
+        
+        public LoopEngine(Synthesizer synthesizer, SessionClock clock, NoteScheduler scheduler, int sampleRate)
+                throws MidiUnavailableException {
+            this.synthesizer = synthesizer;
+            this.receiver = synthesizer.getReceiver();
+            this.clock = clock;
+            this.scheduler = scheduler;
+            this.sampleRate = sampleRate;
+        }
+        
+        // Starts the clock used to stamp input and plays until stop(). With loopBeats > 0
+        // the take is folded onto a loop of that many beats; input is read from log.
+        public synchronized LoopTake start(EventLog log, int tempo, int beatsPerBar, int loopBeats,
+                                           boolean click) {
+            stop();
+            long originMicros = synthesizer.getMicrosecondPosition();
+            clock.start();
+            LoopTake take = loopBeats > 0 ? new LoopTake(beatFrame(loopBeats, tempo)) : null;
+            session = new Session(log, take, originMicros, tempo, beatsPerBar, click);
+            scheduler.execute(session::tick);
+            return take;
+        }
+        
+        // Returns once the take holds everything played and the synthesizer has been told
+        // to silence all channels
+        public synchronized void stop() {
+            if (session == null) return;
+            Session stopping = session;
+            session = null;
+            CountDownLatch finished = new CountDownLatch(1);
+            scheduler.execute(() -> {
+                try {
+                    stopping.finish();
+                } finally {
+                    finished.countDown();
+                }
+            });
+            try {
+                finished.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private long beatFrame(long beat, int tempo) {
+            return beat * 60L * sampleRate / tempo;
+        }
+        
+        private void send(int command, int channel, int data1, int data2, long frame, long originMicros) {
+            try {
+                receiver.send(new ShortMessage(command, channel, data1, data2),
+                        originMicros + frame * 1_000_000 / sampleRate);
+            } catch (InvalidMidiDataException ex) {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+        
+        // One start-to-stop run. Only touched on the scheduler thread.
+        private final class Session {
+            private final EventLog log;
+            private final LoopTake take;
+            private final long originMicros;
+            private final int tempo;
+            private final int beatsPerBar;
+            private final boolean click;
+            private final long lookahead;
+            private long nextBeat;
+            private long scheduled; // frames of loop playback already sent
+            private long latest;    // last timestamp sent, in frames
+            private int merged;
+            private long lastPass;
+            private long offsetSum;  // session clock minus synthesizer clock, in frames, this pass
+            private int offsetCount;
+            private boolean stopped;
+            
+            Session(EventLog log, LoopTake take, long originMicros, int tempo, int beatsPerBar, boolean click) {
+                this.log = log;
+                this.take = take;
+                this.originMicros = originMicros;
+                this.tempo = tempo;
+                this.beatsPerBar = beatsPerBar;
+                this.click = click;
+                this.lookahead = LOOKAHEAD_MS * sampleRate / 1000;
+            }
+            
+            void tick() {
+                if (stopped) return;
+                long now = (synthesizer.getMicrosecondPosition() - originMicros) * sampleRate / 1_000_000;
+                long horizon = Math.max(now, 0) + lookahead;
+                offsetSum += clock.nowFrames() - now;
+                offsetCount++;
+                
+                while (click && beatFrame(nextBeat, tempo) < horizon) {
+                    long frame = beatFrame(nextBeat, tempo);
+                    int note = nextBeat % beatsPerBar == 0 ? CLICK_ACCENT : CLICK_BEAT;
+                    send(ShortMessage.NOTE_ON, CLICK_CHANNEL, note, nextBeat % beatsPerBar == 0 ? 127 : 90,
+                            frame, originMicros);
+                    send(ShortMessage.NOTE_OFF, CLICK_CHANNEL, note, 0, frame + CLICK_FRAMES, originMicros);
+                    latest = Math.max(latest, frame + CLICK_FRAMES);
+                    nextBeat++;
+                }
+                
+                if (take != null) {
+                    // Fold in what was played since the last tick
+                    int size = log.size();
+                    if (size > merged) {
+                        long started = System.nanoTime();
+                        take.merge(log, merged, size);
+                        mergeMicros.record((System.nanoTime() - started) / 1000);
+                        merged = size;
+                    }
+                    long loop = take.getLoopFrames();
+                    
+                    // Send the layers due before the horizon, one loop cycle at a time
+                    while (scheduled < horizon) {
+                        long base = scheduled - Math.floorMod(scheduled, loop);
+                        long end = Math.min(horizon, base + loop);
+                        take.forEachIn(scheduled - base, end - base, (type, channel, note, velocity, position) ->
+                                send(type == EventLog.NOTE_ON ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF,
+                                        channel, note, velocity, base + position, originMicros));
+                        scheduled = end;
+                    }
+                    latest = Math.max(latest, scheduled);
+                }
+                
+                // Input already logged was merged above on the old alignment; realign for what follows
+                long pass = now / (take != null ? take.getLoopFrames() : beatFrame(beatsPerBar, tempo));
+                if (pass > lastPass) {
+                    if (take != null) passes.add(pass - lastPass);
+                    lastPass = pass;
+                    long offset = offsetSum / offsetCount;
+                    clock.adjust(offset);
+                    clockOffset.record(Math.abs(offset) * 1_000_000 / sampleRate);
+                    offsetSum = 0;
+                    offsetCount = 0;
+                }
+                scheduler.schedule(System.nanoTime() + TICK_MS * 1_000_000, this::tick);
+            }
+            
+            void finish() {
+                stopped = true;
+                try {
+                    if (take != null) {
+                        // Input has stopped; fold in the last tick's worth and end any held notes
+                        take.merge(log, merged, log.size());
+                        take.closeOpenNotes();
+                    }
+                } finally {
+                    // Silence everything, after any events already queued in the synthesizer
+                    for (int channel = 0; channel < 16; channel++) {
+                        send(ShortMessage.CONTROL_CHANGE, channel, 123, 0, latest, originMicros);
+                    }
+                }
+            }
+        }
+    }
+
+    // Single shared high-priority thread for every timed action: playback batches, loop
+    // engine ticks and WAV streaming. Tasks are kept in System.nanoTime deadline order; the
+    // thread parks until shortly before the earliest deadline and spins the rest. Tasks run
+    // one at a time and must not block, so anything that waits reschedules itself instead.
+    // Records how late each task ran relative to its deadline.
+    static class NoteScheduler {
+        private static final long SPIN_NANOS = 1_500_000;
+        
+        // A pending action; a cancelled task is dropped when its deadline comes up
+        static final class Task implements Comparable<Task> {
+            private final long deadline;
+            private final long sequence;
+            private final Runnable action;
+            private volatile boolean cancelled;
+            
+            Task(long deadline, long sequence, Runnable action) {
+                this.deadline = deadline;
+                this.sequence = sequence;
+                this.action = action;
+            }
+            
+            public void cancel() { cancelled = true; }
+            
+            // Deadlines compare by difference so nanoTime wraparound is harmless;
+            // equal deadlines run in the order they were scheduled
+            @Override public int compareTo(Task other) {
+                long diff = deadline - other.deadline;
+                if (diff != 0) return diff < 0 ? -1 : 1;
+                return Long.compare(sequence, other.sequence);
+            }
+        }
+        
+        private final PriorityQueue<Task> queue = new PriorityQueue<>();
+        private final LatencyHistogram lateness;
+        private final Thread thread;
+        private long sequence;              // guarded by queue
+        private volatile int headChanges;   // bumped whenever a new task becomes the earliest
+        private volatile boolean running = true;
+        
+        public NoteScheduler() {
+            this(Metrics.REGISTRY.histogram("scheduler.lateness_us"));
+        }
+        
+        // The benchmark passes its own histogram so its numbers stay out of the app's metrics
+        NoteScheduler(LatencyHistogram lateness) {
+            this.lateness = lateness;
+            thread = new Thread(this::run, "note-scheduler");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
+        
+        public Task schedule(long deadlineNanos, Runnable action) {
+            synchronized (queue) {
+                Task task = new Task(deadlineNanos, sequence++, action);
+                queue.add(task);
+                if (queue.peek() == task) {
+                    headChanges++;
+                    LockSupport.unpark(thread);
+                }
+                return task;
+            }
+        }
+        
+        public Task execute(Runnable action) {
+            return schedule(System.nanoTime(), action);
+        }
+        
+        // Scheduling lateness in microseconds at the given percentile (0-100)
+        public long getLatenessMicros(double percentile) { return lateness.getPercentile(percentile); }
+        public long getScheduledCount() { return lateness.getCount(); }
+        
+        public void shutdown() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+        
+        private void run() {
+            while (running) {
+                Task next;
+                int seen;
+                synchronized (queue) {
+                    next = queue.peek();
+                    seen = headChanges;
+                }
+                if (next == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                long remaining = next.deadline - System.nanoTime();
+                if (remaining > SPIN_NANOS) {
+                    LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+                    continue;
+                }
+                // Spin the last stretch unless an earlier task arrives meanwhile
+                while (System.nanoTime() - next.deadline < 0) {
+                    if (headChanges != seen) break;
+                }
+                synchronized (queue) {
+                    if (headChanges != seen || queue.peek() != next) continue;
+                    queue.poll();
+                }
+                if (next.cancelled) continue;
+                lateness.record((System.nanoTime() - next.deadline) / 1000);
+                try {
+                    next.action.run();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Lock-free latency histogram with log-linear buckets (exact below 64, ~3% error above).
+    // Recording is a single atomic increment and never allocates.
+    static class LatencyHistogram {
+        private static final int LINEAR_BUCKETS = 64;
+        private static final int SUB_BUCKETS = 32;
+        private final AtomicLongArray counts = new AtomicLongArray(LINEAR_BUCKETS + (64 - 6) * SUB_BUCKETS);
+        
+        public void record(long value) {
+            counts.incrementAndGet(bucketOf(Math.max(0, value)));
+        }
+        
+        public long getCount() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+            return total;
+        }
+        
+        public long getPercentile(double percentile) {
+            long total = getCount();
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return valueOf(i);
+            }
+            return valueOf(counts.length() - 1);
+        }
+        
+        public void reset() {
+            for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+        }
+        
+        private static int bucketOf(long value) {
+            if (value < LINEAR_BUCKETS) return (int)value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int)(value >>> (exponent - 5)) & (SUB_BUCKETS - 1);
+            return LINEAR_BUCKETS + (exponent - 6) * SUB_BUCKETS + sub;
+        }
+        
+        // Lower bound of the values that fall into the bucket
+        private static long valueOf(int bucket) {
+            if (bucket < LINEAR_BUCKETS) return bucket;
+            int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 6;
+            long sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+            return (SUB_BUCKETS + sub) << (exponent - 5);
+        }
+    }
+    
+    // One layered part: an instrument on its own MIDI channel
+    static final class InstrumentTrack {
+        final String name;
+        final int channel;
+        final int bank;
+        final int program;
+        
+        InstrumentTrack(String name, int channel, int bank, int program) {
+            this.name = name;
+            this.channel = channel;
+            this.bank = bank;
+            this.program = program;
+        }
+    }
+    
+    // Sends notes to the synthesizer's channels. Program and bank changes are cached per
+    // channel so repeated selections are not re-sent, batches are dispatched one channel
+    // at a time, and every channel counts its events for rate metrics.
+    static class MidiRouter {
+        static final int CHANNELS = 16;
+        
+        private final MidiChannel[] channels;
+        private final int[] instruments = new int[CHANNELS]; // bank << 7 | program, -1 if unknown
+        private final AtomicLongArray eventCounts = new AtomicLongArray(CHANNELS);
+        private final long[] rateCounts = new long[CHANNELS];
+        private final long[] rateNanos = new long[CHANNELS];
+        
+        public MidiRouter(MidiChannel[] channels) {
+            this.channels = channels;
+            Arrays.fill(instruments, -1);
+            Arrays.fill(rateNanos, System.nanoTime());
+        }
+        
+        public void selectInstrument(int channel, int bank, int program) {
+            int instrument = bank << 7 | program;
+            if (instruments[channel] == instrument) return;
+            channels[channel].programChange(bank, program);
+            instruments[channel] = instrument;
+        }
+        
+        public void noteOn(int channel, int note, int velocity) {
+            channels[channel].noteOn(note, velocity);
+            eventCounts.incrementAndGet(channel);
+        }
+        
+        public void noteOff(int channel, int note) {
+            channels[channel].noteOff(note);
+            eventCounts.incrementAndGet(channel);
+        }
+        
+        public void dispatch(Batch batch) {
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                if ((batch.channelMask & 1 << channel) == 0) continue;
+                MidiChannel target = channels[channel];
+                int sent = 0;
+                for (int i = 0; i < batch.size; i++) {
+                    if (batch.channels[i] != channel) continue;
+                    if (batch.types[i] == EventLog.NOTE_ON) {
+                        target.noteOn(batch.notes[i], batch.velocities[i]);
+                    } else {
+                        target.noteOff(batch.notes[i]);
+                    }
+                    sent++;
+                }
+                eventCounts.addAndGet(channel, sent);
+            }
+        }
+        
+        public long getEventCount(int channel) { return eventCounts.get(channel); }
+        
+        // Events per second on one channel since the previous call for that channel
+        public synchronized double getEventRate(int channel) {
+            long now = System.nanoTime();
+            double seconds = Math.max(1e-9, (now - rateNanos[channel]) / 1e9);
+            long count = eventCounts.get(channel);
+            double rate = (count - rateCounts[channel]) / seconds;
+            rateCounts[channel] = count;
+            rateNanos[channel] = now;
+            return rate;
+        }
+        
+        // Events due at the same instant, stored in primitive arrays and reused
+        static final class Batch {
+            private static final int CAPACITY = 256;
+            private final byte[] types = new byte[CAPACITY];
+            private final byte[] channels = new byte[CAPACITY];
+            private final byte[] notes = new byte[CAPACITY];
+            private final byte[] velocities = new byte[CAPACITY];
+            private int size;
+            private int channelMask;
+            
+            // Returns false when the batch is full
+            public boolean add(byte type, int channel, int note, int velocity) {
+                if (size == CAPACITY) return false;
+                types[size] = type;
+                channels[size] = (byte)channel;
+                notes[size] = (byte)note;
+                velocities[size] = (byte)velocity;
+                channelMask |= 1 << channel;
+                size++;
+                return true;
+            }
+            
+            public void clear() {
+                size = 0;
+                channelMask = 0;
+            }
+            
+            public int size() { return size; }
+            public byte getType(int i) { return types[i]; }
+            public int getChannel(int i) { return channels[i]; }
+            public int getNote(int i) { return notes[i]; }
+        }
+    }
+    
+    // Receives note-on/off as they are sent to the synthesizer
+    interface NoteListener {
+        void noteChanged(int note, boolean on);
+    }
+    
+    // Plays recorded events as tasks on the shared NoteScheduler. Events due at the same
+    // instant go out as one batch at its System.nanoTime deadline, and each batch schedules
+    // the next, so play, seek and stop replace the request by cancelling a single task.
+    static class PlaybackEngine {
+        private final MidiRouter router;
+        private final NoteListener listener;
+        private final NoteScheduler scheduler;
+        private final MidiRouter.Batch batch = new MidiRouter.Batch();
+        private final LatencyHistogram timingError = new LatencyHistogram(); // current play only
+        private final LatencyHistogram totalTimingError = Metrics.REGISTRY.histogram("playback.timing_error_us");
+        private final Metrics.Counter playbackEvents = Metrics.REGISTRY.counter("playback.events");
+        private final boolean[] sounding = new boolean[16 * 128]; // per channel and note
+        private final Object lock = new Object();
+        
+        // Current request, guarded by lock. generation changes on every play, seek or stop.
+        private EventSource events;
+        private long origin;
+        private int timeBase;
+        private double speed;
+        private long seekMillis;
+        private Runnable onFinished;
+        private NoteScheduler.Task pending;
+        private volatile long generation;
+        
+        // Position in the request being played, owned by the scheduler thread
+        private EventSource playing;
+        private long playOrigin;
+        private long from;
+        private double nanosPerTick;
+        private long base;
+        private int size;
+        private int index;
+        
+        public PlaybackEngine(MidiRouter router, NoteListener listener, NoteScheduler scheduler) {
+            this.router = router;
+            this.listener = listener;
+            this.scheduler = scheduler;
+        }
+        
+        // Plays events timed relative to origin in timeBase ticks per second;
+        // speed 2.0 plays twice as fast
+        public void play(EventSource events, long origin, int timeBase, double speed, Runnable onFinished) {
+            synchronized (lock) {
+                this.events = events;
+                this.origin = origin;
+                this.timeBase = timeBase;
+                this.speed = speed;
+                this.seekMillis = 0;
+                this.onFinished = onFinished;
+                timingError.reset();
+                restart(this::begin);
+            }
+        }
+        
+        // Jumps to a position (ms into the recording) in the current playback
+        public void seek(long millis) {
+            synchronized (lock) {
+                if (events == null) return;
+                seekMillis = Math.max(0, millis);
+                restart(this::begin);
+            }
+        }
+        
+        public void stop() {
+            synchronized (lock) {
+                events = null;
+                restart(gen -> allNotesOff());
+            }
+        }
+        
+        public boolean isPlaying() {
+            synchronized (lock) {
+                return events != null;
+            }
+        }
+        
+        // Absolute deviation between scheduled and actual event time, in microseconds
+        public long getTimingErrorMicros(double percentile) { return timingError.getPercentile(percentile); }
+        
+        public void shutdown() {
+            stop();
+        }
+        
+        // Called with lock held
+        private void restart(LongConsumer action) {
+            long gen = ++generation;
+            if (pending != null) pending.cancel();
+            pending = scheduler.execute(() -> action.accept(gen));
+        }
+        
+        private void begin(long gen) {
+            synchronized (lock) {
+                if (generation != gen) return;
+                playing = events;
+                playOrigin = origin;
+                from = seekMillis * timeBase / 1000;
+                nanosPerTick = 1e9 / (timeBase * speed);
+            }
+            allNotesOff();
+            size = playing.size();
+            index = 0;
+            while (index < size && playing.getTime(index) - playOrigin < from) index++;
+            base = System.nanoTime();
+            scheduleNext(gen);
+        }
+        
+        private void scheduleNext(long gen) {
+            if (index >= size) {
+                finish(gen);
+                return;
+            }
+            long deadline = base + (long)((playing.getTime(index) - playOrigin - from) * nanosPerTick);
+            synchronized (lock) {
+                if (generation != gen) return;
+                pending = scheduler.schedule(deadline, () -> perform(gen, deadline));
+            }
+        }
+        
+        private void perform(long gen, long deadline) {
+            if (generation != gen) return;
+            long error = Math.abs(System.nanoTime() - deadline) / 1000;
+            timingError.record(error);
+            totalTimingError.record(error);
+            
+            // Everything due at this instant goes out as one batch
+            long time = playing.getTime(index);
+            batch.clear();
+            while (index < size && playing.getTime(index) == time
+                    && batch.add(playing.getType(index), playing.getChannel(index), playing.getNote(index),
+                            playing.getVelocity(index))) {
+                index++;
+            }
+            router.dispatch(batch);
+            playbackEvents.add(batch.size());
+            
+            for (int b = 0; b < batch.size(); b++) {
+                boolean on = batch.getType(b) == EventLog.NOTE_ON;
+                sounding[batch.getChannel(b) << 7 | batch.getNote(b)] = on;
+                listener.noteChanged(batch.getNote(b), on);
+            }
+            scheduleNext(gen);
+        }
+        
+        private void finish(long gen) {
+            allNotesOff();
+            Runnable done;
+            synchronized (lock) {
+                if (generation != gen) return;
+                events = null;
+                pending = null;
+                done = onFinished;
+            }
+            if (done != null) done.run();
+        }
+        
+        private void allNotesOff() {
+            for (int key = 0; key < sounding.length; key++) {
+                if (sounding[key]) {
+                    router.noteOff(key >> 7, key & 0x7f);
+                    listener.noteChanged(key & 0x7f, false);
+                    sounding[key] = false;
+                }
+            }
+        }
+    }
+
+    // Recorded notes as spans on the sample timeline, sorted by start frame
+    static class NoteTimeline {
+        private final long[] startFrames;
+        private final long[] endFrames;
+        private final int[] notes;
+        private final int[] velocities;
+        private final int size;
+        private final long lengthFrames;
+        
+        NoteTimeline(long[] startFrames, long[] endFrames, int[] notes, int[] velocities, int size) {
+            this.startFrames = startFrames;
+            this.endFrames = endFrames;
+            this.notes = notes;
+            this.velocities = velocities;
+            this.size = size;
+            
+            long length = 0;
+            for (int i = 0; i < size; i++) {
+                length = Math.max(length, endFrames[i] + Mixer.RAMP_FRAMES);
+            }
+            this.lengthFrames = length;
+        }
+        
+        // Pairs each NOTE_ON with the next NOTE_OFF of the same note.
+        // Notes still held at the end of the take are closed at the last event.
+        static NoteTimeline fromEvents(EventSource events, long origin, int timeBase, int sampleRate) {
+            int size = events.size(); // consistent snapshot even while recording continues
+            int count = 0;
+            long lastTime = origin;
+            for (int i = 0; i < size; i++) {
+                if (events.getType(i) == EventLog.NOTE_ON) count++;
+                lastTime = Math.max(lastTime, events.getTime(i));
+            }
+            
+            // Read strictly in order so lazily decoded sources never seek backwards
+            long[] onTimes = new long[count];
+            int[] onNotes = new int[count];
+            int[] onVelocities = new int[count];
+            long[] offTimes = new long[count];
+            int[] open = new int[16 * 128]; // per channel and note
+            Arrays.fill(open, -1);
+            
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int note = events.getNote(i);
+                int key = events.getChannel(i) << 7 | note;
+                long time = events.getTime(i);
+                if (events.getType(i) == EventLog.NOTE_ON) {
+                    if (open[key] >= 0) offTimes[open[key]] = time; // retrigger
+                    onTimes[n] = time;
+                    onNotes[n] = note;
+                    onVelocities[n] = events.getVelocity(i);
+                    offTimes[n] = lastTime;
+                    open[key] = n++;
+                } else if (open[key] >= 0) {
+                    offTimes[open[key]] = time;
+                    open[key] = -1;
+                }
+            }
+            
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) order[i] = i;
+            Arrays.sort(order, (x, y) -> Long.compare(onTimes[x], onTimes[y]));
+            
+            long[] starts = new long[count];
+            long[] ends = new long[count];
+            int[] notes = new int[count];
+            int[] velocities = new int[count];
+            for (int i = 0; i < count; i++) {
+                int on = order[i];
+                long duration = Math.max(0, offTimes[on] - onTimes[on]);
+                starts[i] = Math.max(0, onTimes[on] - origin) * sampleRate / timeBase;
+                ends[i] = starts[i] + duration * sampleRate / timeBase;
+                notes[i] = onNotes[on];
+                velocities[i] = onVelocities[on];
+            }
+            return new NoteTimeline(starts, ends, notes, velocities, count);
+        }
+        
+        public int size() { return size; }
+        public long getStartFrame(int i) { return startFrames[i]; }
+        public long getEndFrame(int i) { return endFrames[i]; }
+        public int getNote(int i) { return notes[i]; }
+        public int getVelocity(int i) { return velocities[i]; }
+        public long getLengthFrames() { return lengthFrames; }
+    }
+    
+    // Polyphonic voice mixer. Renders the timeline one block at a time by summing
+    // every sounding voice into a float mix buffer.
+    static class Mixer {
+        static final int MAX_VOICES = 64;
+        static final int RAMP_FRAMES = 220; // ~5 ms attack and release
+        private static final float MASTER_GAIN = 0.3f;
+        
+        private final NoteTimeline timeline;
+        private final int sampleRate;
+        private final Voice[] voices = new Voice[MAX_VOICES];
+        private final float[] scratch;
+        private int activeCount;
+        private int nextSpan;
+        
+        public Mixer(NoteTimeline timeline, int sampleRate, int blockFrames) {
+            this.timeline = timeline;
+            this.sampleRate = sampleRate;
+            this.scratch = new float[blockFrames];
+            for (int i = 0; i < MAX_VOICES; i++) voices[i] = new Voice();
+        }
+        
+        // Renders frames [position, position + count) into mix, overwriting its contents.
+        // Calls must move forward through the timeline.
+        public void render(float[] mix, long position, int count) {
+            Arrays.fill(mix, 0, count, 0f);
+            advance(mix, position, count);
+        }
+        
+        // Runs voice allocation for a block without rendering any audio
+        public void skip(long position, int count) {
+            advance(null, position, count);
+        }
+        
+        // Captures the voice allocation state: the next span followed by the active spans in mix order
+        public int[] snapshot() {
+            int[] state = new int[activeCount + 1];
+            state[0] = nextSpan;
+            for (int i = 0; i < activeCount; i++) state[i + 1] = voices[i].span;
+            return state;
+        }
+        
+        public void restore(int[] state) {
+            nextSpan = state[0];
+            activeCount = state.length - 1;
+            for (int i = 0; i < activeCount; i++) voices[i].start(state[i + 1]);
+        }
+        
+        private void advance(float[] mix, long position, int count) {
+            long blockEnd = position + count;
+            
+            while (nextSpan < timeline.size() && timeline.getStartFrame(nextSpan) < blockEnd) {
+                if (timeline.getEndFrame(nextSpan) + RAMP_FRAMES > position) {
+                    allocate().start(nextSpan);
+                }
+                nextSpan++;
+            }
+            
+            for (int i = 0; i < activeCount; ) {
+                Voice voice = voices[i];
+                if (mix != null) voice.render(mix, position, count);
+                if (voice.stopFrame <= blockEnd) {
+                    // Swap the finished voice out of the active range
+                    voices[i] = voices[--activeCount];
+                    voices[activeCount] = voice;
+                } else {
+                    i++;
+                }
+            }
+        }
+        
+        private Voice allocate() {
+            if (activeCount < MAX_VOICES) {
+                return voices[activeCount++];
+            }
+            // Steal the oldest voice
+            int oldest = 0;
+            for (int i = 1; i < activeCount; i++) {
+                if (voices[i].startFrame < voices[oldest].startFrame) oldest = i;
+            }
+            return voices[oldest];
+        }
+        
+        private class Voice {
+            private final Oscillator oscillator = new Oscillator();
+            private int span;
+            private long startFrame;
+            private long endFrame;
+            private long stopFrame;
+            private double cyclesPerFrame;
+            private float gain;
+            
+            void start(int span) {
+                double frequency = 440.0 * Math.pow(2, (timeline.getNote(span) - 69) / 12.0);
+                this.span = span;
+                startFrame = timeline.getStartFrame(span);
+                endFrame = timeline.getEndFrame(span);
+                stopFrame = endFrame + RAMP_FRAMES;
+                cyclesPerFrame = frequency / sampleRate;
+                gain = MASTER_GAIN * timeline.getVelocity(span) / 127f;
+                oscillator.setFrequency(frequency, sampleRate);
+            }
+            
+            void render(float[] mix, long position, int count) {
+                long from = Math.max(position, startFrame);
+                long to = Math.min(position + count, stopFrame);
+                if (from >= to) return;
+                
+                // Phase is derived from the absolute frame so any block renders identically
+                int offset = (int)(from - position);
+                int length = (int)(to - from);
+                oscillator.setPhase((from - startFrame) * cyclesPerFrame);
+                Arrays.fill(scratch, 0, length, 0f);
+                oscillator.render(scratch, 0, length, gain);
+                
+                for (int i = 0; i < length; i++) {
+                    long t = from + i;
+                    float envelope = 1f;
+                    if (t - startFrame < RAMP_FRAMES) envelope = (t - startFrame) / (float)RAMP_FRAMES;
+                    if (t >= endFrame) envelope = Math.min(envelope, (stopFrame - t) / (float)RAMP_FRAMES);
+                    mix[offset + i] += scratch[i] * envelope;
+                }
+            }
+        }
+    }
+    
+    // Renders a timeline to 16-bit PCM, either serially or split into segments on a ForkJoinPool.
+    // Both paths produce sample-identical output.
+    static class OfflineRenderer {
+        static final int SEGMENT_BLOCKS = 64;
+        
+        private final NoteTimeline timeline;
+        private final int sampleRate;
+        private final int blockFrames;
+        private final long segmentFrames;
+        private JobQueue.Progress progress;
+        private AudioProcessor effects;
+        
+        public OfflineRenderer(NoteTimeline timeline, int sampleRate, int blockFrames) {
+            this.timeline = timeline;
+            this.sampleRate = sampleRate;
+            this.blockFrames = blockFrames;
+            this.segmentFrames = (long)blockFrames * SEGMENT_BLOCKS;
+        }
+        
+        // Optional; receives the fraction rendered and aborts the render when cancelled
+        public void setProgress(JobQueue.Progress progress) {
+            this.progress = progress;
+        }
+        
+        // Optional; runs on the mixed signal ahead of the limiter, and its tail is rendered too
+        public void setEffects(AudioProcessor effects) {
+            this.effects = effects;
+        }
+        
+        public int getSegmentCount() {
+            return (int)((timeline.getLengthFrames() + segmentFrames - 1) / segmentFrames);
+        }
+        
+        public void render(SampleWriter out) throws IOException {
+            Mixer mixer = new Mixer(timeline, sampleRate, blockFrames);
+            Limiter limiter = new Limiter(sampleRate);
+            float[] mix = new float[blockFrames];
+            short[] block = new short[blockFrames];
+            
+            long length = timeline.getLengthFrames();
+            long total = length + (effects == null ? 0 : effects.getTailFrames());
+            for (long position = 0; position < total; position += blockFrames) {
+                report(position, total);
+                int count = (int)Math.min(blockFrames, total - position);
+                int mixed = (int)Math.max(0, Math.min(count, length - position));
+                if (mixed > 0) mixer.render(mix, position, mixed);
+                Arrays.fill(mix, mixed, count, 0f);
+                if (effects != null) effects.process(mix, 0, count);
+                limiter.process(mix, 0, count);
+                toPcm16(mix, 0, block, count);
+                out.write(block, count);
+            }
+        }
+        
+        // Segments are mixed in parallel and written in order. The limiter carries state
+        // across the whole take, so it runs on the calling thread as segments complete.
+        public void renderParallel(SampleWriter out, ForkJoinPool pool) throws IOException {
+            int[][] states = planSegments();
+            Limiter limiter = new Limiter(sampleRate);
+            short[] block = new short[blockFrames];
+            long length = timeline.getLengthFrames();
+            
+            // Keep a bounded window of segments in flight so memory stays flat
+            int window = pool.getParallelism() * 2;
+            ArrayDeque<ForkJoinTask<float[]>> pending = new ArrayDeque<>();
+            int next = 0;
+            try {
+                for (int segment = 0; segment < states.length; segment++) {
+                    while (next < states.length && pending.size() < window) {
+                        final int index = next++;
+                        pending.add(pool.submit(() -> renderSegment(index, states[index])));
+                    }
+                    
+                    report(segment * segmentFrames, length);
+                    float[] samples = pending.poll().join();
+                    int frames = (int)Math.min(segmentFrames, length - segment * segmentFrames);
+                    if (effects != null) effects.process(samples, 0, frames);
+                    limiter.process(samples, 0, frames);
+                    for (int offset = 0; offset < frames; offset += blockFrames) {
+                        int count = Math.min(blockFrames, frames - offset);
+                        toPcm16(samples, offset, block, count);
+                        out.write(block, count);
+                    }
+                }
+            } finally {
+                for (ForkJoinTask<float[]> task : pending) task.cancel(true);
+            }
+            
+            // Let the effects ring out after the last note
+            if (effects == null) return;
+            float[] tail = new float[blockFrames];
+            for (long remaining = effects.getTailFrames(); remaining > 0; remaining -= blockFrames) {
+                int count = (int)Math.min(blockFrames, remaining);
+                Arrays.fill(tail, 0f);
+                effects.process(tail, 0, count);
+                limiter.process(tail, 0, count);
+                toPcm16(tail, 0, block, count);
+                out.write(block, count);
+            }
+        }
+        
+        private void report(long position, long length) {
+            if (progress == null) return;
+            if (progress.isCancelled()) throw new CancellationException();
+            progress.update((double)position / length);
+        }
+        
+        // Replays voice allocation without rendering to capture the mixer state at each
+        // segment boundary, so voices that carry over a boundary sound exactly as in a serial pass
+        private int[][] planSegments() {
+            int[][] states = new int[getSegmentCount()][];
+            Mixer planner = new Mixer(timeline, sampleRate, blockFrames);
+            long length = timeline.getLengthFrames();
+            
+            for (int segment = 0; segment < states.length; segment++) {
+                states[segment] = planner.snapshot();
+                long start = segment * segmentFrames;
+                long end = Math.min(start + segmentFrames, length);
+                for (long position = start; position < end; position += blockFrames) {
+                    planner.skip(position, (int)Math.min(blockFrames, end - position));
+                }
+            }
+            return states;
+        }
+        
+        private float[] renderSegment(int segment, int[] state) {
+            Mixer mixer = new Mixer(timeline, sampleRate, blockFrames);
+            mixer.restore(state);
+            
+            long start = segment * segmentFrames;
+            long end = Math.min(start + segmentFrames, timeline.getLengthFrames());
+            float[] samples = new float[(int)(end - start)];
+            float[] mix = new float[blockFrames];
+            for (long position = start; position < end; position += blockFrames) {
+                int count = (int)Math.min(blockFrames, end - position);
+                mixer.render(mix, position, count);
+                System.arraycopy(mix, 0, samples, (int)(position - start), count);
+            }
+            return samples;
+        }
+    }
+    
+    // The audio side of the app with no AWT dependencies: rendering sessions to WAV with
+    // their peak sidecars. Used by the editor's job queue and by the headless batch CLI.
+    static final class ExportEngine {
+        private ExportEngine() {}
+        
+        // effects may be null for a dry render; a chain must not be shared between renders
+        public static RenderStats renderToWav(EventSource events, long origin, int timeBase, String filename, 
+                                              AudioProcessor effects, JobQueue.Progress progress) throws Exception {
+            return renderToFile(events, origin, timeBase, filename, AudioFiles.FORMAT_PCM, effects, progress);
+        }
+        
+        // Encodes block by block as it renders, in any of the AudioFiles formats
+        public static RenderStats renderToFile(EventSource events, long origin, int timeBase, String filename, 
+                                               int format, AudioProcessor effects, JobQueue.Progress progress) 
+                throws Exception {
+            long startNanos = System.nanoTime();
+            PeakSummary.Builder peaks = new PeakSummary.Builder(SAMPLE_RATE);
+        
+            // Prefer bouncing through the software synthesizer so the export sounds like
+            // live playback; fall back to the built-in tone mixer where it is unavailable
+            SynthRenderer synth = SynthRenderer.open(SAMPLE_RATE, RENDER_BLOCK_FRAMES, TRACKS);
+            if (synth != null) {
+                try (SynthRenderer renderer = synth; 
+                     SampleWriter out = AudioFiles.openWriter(Paths.get(filename), format, SAMPLE_RATE, RENDER_BLOCK_FRAMES)) {
+                    out.setPeaks(peaks);
+                    renderer.setProgress(progress);
+                    renderer.setEffects(effects);
+                    renderer.render(events, origin, timeBase, out);
+                    peaks.write(peaksPathFor(filename));
+                    return recordExport(new RenderStats(out.getFrames(), SAMPLE_RATE, System.nanoTime() - startNanos));
+                }
+            }
+            
+            // Pair NOTE_ON/NOTE_OFF events into spans on the sample timeline
+            NoteTimeline timeline = NoteTimeline.fromEvents(events, origin, timeBase, SAMPLE_RATE);
+            
+            // Audio is mixed in fixed-size float blocks and streamed straight to disk,
+            // so heap use stays flat no matter how long the take is
+            OfflineRenderer renderer = new OfflineRenderer(timeline, SAMPLE_RATE, RENDER_BLOCK_FRAMES);
+            renderer.setProgress(progress);
+            renderer.setEffects(effects);
+            long frames;
+            try (SampleWriter out = AudioFiles.openWriter(Paths.get(filename), format, SAMPLE_RATE, RENDER_BLOCK_FRAMES)) {
+                // Waveform peaks are summarised in the same pass, so previews never decode the WAV
+                out.setPeaks(peaks);
+                if (PARALLEL_EXPORT && renderer.getSegmentCount() > 1) {
+                    renderer.renderParallel(out, ForkJoinPool.commonPool());
+                } else {
+                    renderer.render(out);
+                }
+                frames = out.getFrames();
+            }
+            peaks.write(peaksPathFor(filename));
+            return recordExport(new RenderStats(frames, SAMPLE_RATE, System.nanoTime() - startNanos));
+        }
+        
+        private static RenderStats recordExport(RenderStats stats) {
+            EXPORT_FILES.increment();
+            EXPORT_FRAMES.add(stats.frames);
+            EXPORT_MILLIS.record(stats.nanos / 1_000_000);
+            EXPORT_SPEED.record(Math.round(stats.getRealTimeFactor()));
+            Metrics.REGISTRY.trace("export.realtime_x", Math.round(stats.getRealTimeFactor()));
+            return stats;
+        }
+        
+        public static RenderStats renderSession(Path session, Path audio, int format, AudioProcessor effects, 
+                                                JobQueue.Progress progress) throws Exception {
+            try (SessionFile events = SessionFile.open(session)) {
+                return renderToFile(events, 0, events.getTimeBase(), audio.toString(), format, effects, progress);
+            }
+        }
+    }
+    
+    // Bounces events through the Java Sound software synthesizer's offline stream
+    // (Gervill's AudioSynthesizer.openStream). Nothing is opened on the audio device, and
+    // PCM is pulled block by block as fast as the CPU allows. Events are sent with
+    // microsecond timestamps just ahead of the block that plays them, so the synthesizer
+    // queue stays short for long takes. AudioSynthesizer is not exported on Java 9+, so it
+    // is reached reflectively; run with
+    // --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED to enable it there.
+    // When it cannot be opened the reason is kept and reported once on stderr; every
+    // caller still tries again, so one failure does not disable it for the process.
+    static class SynthRenderer implements Closeable {
+        static final String EXPORT_FLAG = "--add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED";
+        private static final long TAIL_MICROS = 2_000_000; // lets releases ring out
+        private static volatile String unavailableReason;
+        private static final AtomicBoolean warned = new AtomicBoolean();
+        
+        private final Synthesizer synthesizer;
+        private final AudioInputStream stream;
+        private final int sampleRate;
+        private final int blockFrames;
+        private final InstrumentTrack[] tracks;
+        private JobQueue.Progress progress;
+        private AudioProcessor effects;
+        
+        private SynthRenderer(Synthesizer synthesizer, AudioInputStream stream, int sampleRate, 
+                              int blockFrames, InstrumentTrack[] tracks) {
+            this.synthesizer = synthesizer;
+            this.stream = stream;
+            this.sampleRate = sampleRate;
+            this.blockFrames = blockFrames;
+            this.tracks = tracks;
+        }
+        
+        // Returns null when the offline stream cannot be opened on this JVM
+        static SynthRenderer open(int sampleRate, int blockFrames, InstrumentTrack[] tracks) {
+            try {
+                Synthesizer synthesizer = MidiSystem.getSynthesizer();
+                AudioInputStream stream = openStream(synthesizer, new AudioFormat(sampleRate, 16, 1, true, false));
+                return stream == null ? null : new SynthRenderer(synthesizer, stream, sampleRate, blockFrames, tracks);
+            } catch (MidiUnavailableException ex) {
+                unavailable("no synthesizer: " + ex.getMessage());
+                return null;
+            }
+        }
+        
+        // Opens the synthesizer in offline mode; null when this JVM does not allow it
+        static AudioInputStream openStream(Synthesizer synthesizer, AudioFormat format) {
+            try {
+                Class<?> type = Class.forName("com.sun.media.sound.AudioSynthesizer");
+                if (!type.isInstance(synthesizer)) {
+                    unavailable(synthesizer.getClass().getName() + " has no offline stream");
+                    return null;
+                }
+                Method openStream = type.getMethod("openStream", AudioFormat.class, Map.class);
+                AudioInputStream stream = (AudioInputStream)openStream.invoke(synthesizer, format, null);
+                unavailableReason = null;
+                return stream;
+            } catch (IllegalAccessException ex) {
+                unavailable("com.sun.media.sound is not exported; run java with " + EXPORT_FLAG);
+                return null;
+            } catch (ReflectiveOperationException ex) {
+                unavailable(ex.toString());
+                return null;
+            }
+        }
+        
+        // Why the last attempt to open the offline stream failed, or null if it succeeded
+        static String getUnavailableReason() { return unavailableReason; }
+        
+        private static void unavailable(String reason) {
+            unavailableReason = reason;
+            if (warned.compareAndSet(false, true)) {
+                System.err.println("Synthesizer offline stream unavailable (" + reason 
+                        + "); exports use the built-in tone mixer and live effects are off");
+            }
+        }
+        
+        // Optional; receives the fraction rendered and aborts the render when cancelled
+        public void setProgress(JobQueue.Progress progress) {
+            this.progress = progress;
+        }
+        
+        // Optional; runs on the synthesizer output, followed by a limiter
+        public void setEffects(AudioProcessor effects) {
+            this.effects = effects;
+        }
+        
+        public void render(EventSource events, long origin, int timeBase, SampleWriter out) 
+                throws IOException, MidiUnavailableException, InvalidMidiDataException {
+            Receiver receiver = synthesizer.getReceiver();
+            for (InstrumentTrack track : tracks) {
+                if (track.bank != 0) {
+                    receiver.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, track.channel, 0, track.bank >> 7), 0);
+                    receiver.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, track.channel, 32, track.bank & 0x7f), 0);
+                }
+                receiver.send(new ShortMessage(ShortMessage.PROGRAM_CHANGE, track.channel, track.program, 0), 0);
+            }
+            
+            int size = events.size();
+            long lastMicros = size == 0 ? 0 : toMicros(events.getTime(size - 1) - origin, timeBase);
+            long length = (lastMicros + TAIL_MICROS) * sampleRate / 1_000_000
+                    + (effects == null ? 0 : effects.getTailFrames());
+            
+            byte[] bytes = new byte[blockFrames * 2];
+            short[] block = new short[blockFrames];
+            float[] wet = effects == null ? null : new float[blockFrames];
+            Limiter limiter = new Limiter(sampleRate);
+            int next = 0;
+            for (long position = 0; position < length; position += blockFrames) {
+                report(position, length);
+                int count = (int)Math.min(blockFrames, length - position);
+                
+                // Queue every event that falls inside this block before pulling it
+                long blockEndMicros = (position + count) * 1_000_000 / sampleRate;
+                while (next < size) {
+                    long micros = toMicros(events.getTime(next) - origin, timeBase);
+                    if (micros >= blockEndMicros) break;
+                    int command = events.getType(next) == EventLog.NOTE_ON 
+                            ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+                    receiver.send(new ShortMessage(command, events.getChannel(next), events.getNote(next), 
+                            events.getVelocity(next)), Math.max(0, micros));
+                    next++;
+                }
+                
+                readFully(bytes, count * 2);
+                for (int i = 0; i < count; i++) {
+                    block[i] = (short)((bytes[2 * i] & 0xff) | bytes[2 * i + 1] << 8);
+                }
+                if (effects != null) {
+                    for (int i = 0; i < count; i++) wet[i] = block[i] / 32768f;
+                    effects.process(wet, 0, count);
+                    limiter.process(wet, 0, count);
+                    toPcm16(wet, 0, block, count);
+                }
+                out.write(block, count);
+            }
+        }
+        
+        private static long toMicros(long ticks, int timeBase) {
+            return ticks * 1_000_000 / timeBase;
+        }
+        
+        private void readFully(byte[] bytes, int length) throws IOException {
+            for (int read = 0; read < length; ) {
+                int n = stream.read(bytes, read, length - read);
+                if (n < 0) throw new EOFException("Synthesizer stream ended");
+                read += n;
+            }
+        }
+        
+        private void report(long position, long length) {
+            if (progress == null) return;
+            if (progress.isCancelled()) throw new CancellationException();
+            progress.update((double)position / length);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                stream.close();
+            } finally {
+                synthesizer.close();
+            }
+        }
+    }
+    
+    // Frames rendered and the wall time it took, for export throughput
+    static final class RenderStats {
+        final long frames;
+        final int sampleRate;
+        final long nanos;
+        
+        RenderStats(long frames, int sampleRate, long nanos) {
+            this.frames = frames;
+            this.sampleRate = sampleRate;
+            this.nanos = nanos;
+        }
+        
+        // Seconds of audio produced per second of wall time
+        public double getRealTimeFactor() {
+            return nanos == 0 ? 0 : (double)frames / sampleRate / (nanos / 1e9);
+        }
+    }
+    
+    // In-place processing of mono float blocks. Processors keep their state between calls
+    // and allocate nothing in process(); count never exceeds the block size they were built for.
+    interface AudioProcessor {
+        String getName();
+        void process(float[] block, int offset, int count);
+        void reset();
+        
+        // Frames of output that keep sounding after the input falls silent
+        default int getTailFrames() { return 0; }
+    }
+    
+    // Float block kernels shared by the processors. They are plain counted loops over
+    // arrays, which HotSpot's superword pass compiles to SIMD instructions.
+    static final class BlockOps {
+        private BlockOps() {}
+        
+        static void scale(float[] block, int offset, int count, float gain) {
+            for (int i = offset, end = offset + count; i < end; i++) {
+                block[i] *= gain;
+            }
+        }
+        
+        // dst += src * gain
+        static void mix(float[] dst, int dstOffset, float[] src, int srcOffset, int count, float gain) {
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset + i] += src[srcOffset + i] * gain;
+            }
+        }
+    }
+    
+    // Runs processors in order over reused blocks of at most blockFrames. The cost of each
+    // processor per block is recorded in the metrics registry as fx.<name>.block_ns.
+    static class EffectsChain implements AudioProcessor {
+        private final AudioProcessor[] processors;
+        private final LatencyHistogram[] costs;
+        private final int blockFrames;
+        
+        public EffectsChain(int blockFrames, AudioProcessor... processors) {
+            this.blockFrames = blockFrames;
+            this.processors = processors.clone();
+            this.costs = new LatencyHistogram[processors.length];
+            for (int i = 0; i < processors.length; i++) {
+                costs[i] = Metrics.REGISTRY.histogram("fx." + processors[i].getName() + ".block_ns");
+            }
+        }
+        
+        // EQ, then a dotted-eighth delay, then a medium room
+        public static EffectsChain createDefault(int sampleRate, int blockFrames) {
+            return new EffectsChain(blockFrames,
+                    new Equalizer(sampleRate, 2f, 0f, 1.5f),
+                    new Delay(sampleRate, 0.375, 0.3f, 0.2f),
+                    new Reverb(sampleRate, blockFrames, 0.8f, 0.3f, 0.25f));
+        }
+        
+        @Override public String getName() { return "chain"; }
+        
+        @Override
+        public void process(float[] block, int offset, int count) {
+            for (int start = offset, end = offset + count; start < end; start += blockFrames) {
+                int frames = Math.min(blockFrames, end - start);
+                for (int i = 0; i < processors.length; i++) {
+                    long began = System.nanoTime();
+                    processors[i].process(block, start, frames);
+                    costs[i].record(System.nanoTime() - began);
+                }
+            }
+        }
+        
+        @Override
+        public void reset() {
+            for (AudioProcessor processor : processors) processor.reset();
+        }
+        
+        @Override
+        public int getTailFrames() {
+            int tail = 0;
+            for (AudioProcessor processor : processors) tail += processor.getTailFrames();
+            return tail;
+        }
+    }
+    
+    // Three-band EQ: low shelf at 200 Hz, peak at 1 kHz and high shelf at 5 kHz, gains in dB
+    static class Equalizer implements AudioProcessor {
+        private final Biquad low;
+        private final Biquad mid;
+        private final Biquad high;
+        
+        public Equalizer(int sampleRate, float lowDb, float midDb, float highDb) {
+            low = Biquad.lowShelf(sampleRate, 200, lowDb);
+            mid = Biquad.peak(sampleRate, 1000, 1.0, midDb);
+            high = Biquad.highShelf(sampleRate, 5000, highDb);
+        }
+        
+        @Override public String getName() { return "eq"; }
+        
+        @Override
+        public void process(float[] block, int offset, int count) {
+            low.process(block, offset, count);
+            mid.process(block, offset, count);
+            high.process(block, offset, count);
+        }
+        
+        @Override
+        public void reset() {
+            low.reset();
+            mid.reset();
+            high.reset();
+        }
+    }
+    
+    // Second-order IIR section with the usual audio EQ cookbook designs (direct form I)
+    static final class Biquad {
+        private final float b0, b1, b2, a1, a2;
+        private float x1, x2, y1, y2;
+        
+        private Biquad(double b0, double b1, double b2, double a0, double a1, double a2) {
+            this.b0 = (float)(b0 / a0);
+            this.b1 = (float)(b1 / a0);
+            this.b2 = (float)(b2 / a0);
+            this.a1 = (float)(a1 / a0);
+            this.a2 = (float)(a2 / a0);
+        }
+        
+        static Biquad peak(int sampleRate, double frequency, double q, double gainDb) {
+            double a = Math.pow(10, gainDb / 40);
+            double w = 2 * Math.PI * frequency / sampleRate;
+            double alpha = Math.sin(w) / (2 * q);
+            double cos = Math.cos(w);
+            return new Biquad(1 + alpha * a, -2 * cos, 1 - alpha * a, 1 + alpha / a, -2 * cos, 1 - alpha / a);
+        }
+        
+        static Biquad lowShelf(int sampleRate, double frequency, double gainDb) {
+            double a = Math.pow(10, gainDb / 40);
+            double w = 2 * Math.PI * frequency / sampleRate;
+            double cos = Math.cos(w);
+            double beta = Math.sin(w) * Math.sqrt(a) / Math.sqrt(2); // shelf slope 1
+            return new Biquad(
+                    a * ((a + 1) - (a - 1) * cos + beta),
+                    2 * a * ((a - 1) - (a + 1) * cos),
+                    a * ((a + 1) - (a - 1) * cos - beta),
+                    (a + 1) + (a - 1) * cos + beta,
+                    -2 * ((a - 1) + (a + 1) * cos),
+                    (a + 1) + (a - 1) * cos - beta);
+        }
+        
+        static Biquad highShelf(int sampleRate, double frequency, double gainDb) {
+            double a = Math.pow(10, gainDb / 40);
+            double w = 2 * Math.PI * frequency / sampleRate;
+            double cos = Math.cos(w);
+            double beta = Math.sin(w) * Math.sqrt(a) / Math.sqrt(2);
+            return new Biquad(
+                    a * ((a + 1) + (a - 1) * cos + beta),
+                    -2 * a * ((a - 1) + (a + 1) * cos),
+                    a * ((a + 1) + (a - 1) * cos - beta),
+                    (a + 1) - (a - 1) * cos + beta,
+                    2 * ((a - 1) - (a + 1) * cos),
+                    (a + 1) - (a - 1) * cos - beta);
+        }
+        
+        void process(float[] block, int offset, int count) {
+            float x1 = this.x1, x2 = this.x2, y1 = this.y1, y2 = this.y2;
+            for (int i = offset, end = offset + count; i < end; i++) {
+                float x = block[i];
+                float y = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2;
+                x2 = x1;
+                x1 = x;
+                y2 = y1;
+                y1 = y;
+                block[i] = y;
+            }
+            this.x1 = x1;
+            this.x2 = x2;
+            // Flush denormals so a silent tail does not slow the loop down
+            this.y1 = Math.abs(y1) < 1e-20f ? 0f : y1;
+            this.y2 = Math.abs(y2) < 1e-20f ? 0f : y2;
+        }
+        
+        void reset() {
+            x1 = x2 = y1 = y2 = 0f;
+        }
+    }
+    
+    // Feedback delay line on a ring buffer; the echoes are mixed over the dry signal
+    static class Delay implements AudioProcessor {
+        private final float[] line;
+        private final float feedback;
+        private final float mix;
+        private int position;
+        
+        public Delay(int sampleRate, double seconds, float feedback, float mix) {
+            this.line = new float[Math.max(1, (int)(seconds * sampleRate))];
+            this.feedback = feedback;
+            this.mix = mix;
+        }
+        
+        @Override public String getName() { return "delay"; }
+        
+        @Override
+        public void process(float[] block, int offset, int count) {
+            float[] line = this.line;
+            int pos = position;
+            for (int i = offset, end = offset + count; i < end; i++) {
+                float x = block[i];
+                float echo = line[pos];
+                line[pos] = x + echo * feedback;
+                block[i] = x + echo * mix;
+                if (++pos == line.length) pos = 0;
+            }
+            position = pos;
+        }
+        
+        @Override
+        public void reset() {
+            Arrays.fill(line, 0f);
+            position = 0;
+        }
+        
+        // Until the echoes have decayed by 60 dB
+        @Override
+        public int getTailFrames() {
+            if (feedback <= 0f) return line.length;
+            return (int)(line.length * Math.ceil(Math.log(0.001) / Math.log(feedback)));
+        }
+    }
+    
+    // Mono Schroeder/Moorer reverb in the Freeverb layout: four damped comb filters in
+    // parallel into two allpass diffusers. The wet signal is built in a reused block.
+    static class Reverb implements AudioProcessor {
+        private static final int[] COMB_TUNING = {1116, 1188, 1277, 1356};
+        private static final int[] ALLPASS_TUNING = {556, 441};
+        private static final float INPUT_GAIN = 0.015f;
+        private static final float ALLPASS_FEEDBACK = 0.5f;
+        
+        private final float[][] combs;
+        private final int[] combPositions;
+        private final float[] combFilters;
+        private final float[][] allpasses;
+        private final int[] allpassPositions;
+        private final float feedback;
+        private final float damping;
+        private final float wet;
+        private final float[] wetBlock;
+        
+        public Reverb(int sampleRate, int blockFrames, float roomSize, float damping, float wet) {
+            double scale = sampleRate / 44100.0;
+            combs = new float[COMB_TUNING.length][];
+            for (int i = 0; i < combs.length; i++) combs[i] = new float[(int)(COMB_TUNING[i] * scale)];
+            combPositions = new int[combs.length];
+            combFilters = new float[combs.length];
+            allpasses = new float[ALLPASS_TUNING.length][];
+            for (int i = 0; i < allpasses.length; i++) allpasses[i] = new float[(int)(ALLPASS_TUNING[i] * scale)];
+            allpassPositions = new int[allpasses.length];
+            this.feedback = 0.7f + 0.28f * roomSize;
+            this.damping = damping;
+            this.wet = wet;
+            this.wetBlock = new float[blockFrames];
+        }
+        
+        @Override public String getName() { return "reverb"; }
+        
+        @Override
+        public void process(float[] block, int offset, int count) {
+            float[] out = wetBlock;
+            Arrays.fill(out, 0, count, 0f);
+            for (int c = 0; c < combs.length; c++) {
+                float[] buffer = combs[c];
+                int pos = combPositions[c];
+                float filter = combFilters[c];
+                for (int i = 0; i < count; i++) {
+                    float delayed = buffer[pos];
+                    filter = delayed * (1f - damping) + filter * damping;
+                    buffer[pos] = block[offset + i] * INPUT_GAIN + filter * feedback;
+                    out[i] += delayed;
+                    if (++pos == buffer.length) pos = 0;
+                }
+                combPositions[c] = pos;
+                combFilters[c] = Math.abs(filter) < 1e-20f ? 0f : filter;
+            }
+            for (int a = 0; a < allpasses.length; a++) {
+                float[] buffer = allpasses[a];
+                int pos = allpassPositions[a];
+                for (int i = 0; i < count; i++) {
+                    float delayed = buffer[pos];
+                    float input = out[i];
+                    buffer[pos] = input + delayed * ALLPASS_FEEDBACK;
+                    out[i] = delayed - input;
+                    if (++pos == buffer.length) pos = 0;
+                }
+                allpassPositions[a] = pos;
+            }
+            BlockOps.mix(block, offset, out, 0, count, wet);
+        }
+        
+        @Override
+        public void reset() {
+            for (float[] buffer : combs) Arrays.fill(buffer, 0f);
+            for (float[] buffer : allpasses) Arrays.fill(buffer, 0f);
+            Arrays.fill(combPositions, 0);
+            Arrays.fill(allpassPositions, 0);
+            Arrays.fill(combFilters, 0f);
+        }
+        
+        // Until the longest comb has decayed by 60 dB
+        @Override
+        public int getTailFrames() {
+            int longest = 0;
+            for (float[] buffer : combs) longest = Math.max(longest, buffer.length);
+            return (int)(longest * Math.ceil(Math.log(0.001) / Math.log(feedback)));
+        }
+    }
+    
+    // Live output path for effects. The synthesizer renders into its offline stream instead
+    // of its own audio line; a high-priority thread pulls short blocks, runs the current
+    // effects (if any) and writes them to a SourceDataLine, so live monitoring hears the
+    // same chain as exports. open() returns null when the stream or the line is unavailable,
+    // and the caller opens the synthesizer normally.
+    static class LiveMonitor implements Closeable {
+        private static final int BLOCK_FRAMES = 256;
+        private static final int LINE_BLOCKS = 4;
+        
+        private final AudioInputStream stream;
+        private final SourceDataLine line;
+        private final Limiter limiter;
+        private final Thread thread;
+        private volatile AudioProcessor effects;
+        private volatile boolean running = true;
+        
+        private LiveMonitor(AudioInputStream stream, SourceDataLine line, int sampleRate) {
+            this.stream = stream;
+            this.line = line;
+            this.limiter = new Limiter(sampleRate);
+            this.thread = new Thread(this::run, "live-monitor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+        }
+        
+        static LiveMonitor open(Synthesizer synthesizer, int sampleRate) {
+            AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+            SourceDataLine line;
+            try {
+                line = AudioSystem.getSourceDataLine(format);
+                line.open(format, BLOCK_FRAMES * LINE_BLOCKS * format.getFrameSize());
+            } catch (LineUnavailableException | IllegalArgumentException ex) {
+                return null;
+            }
+            AudioInputStream stream = SynthRenderer.openStream(synthesizer, format);
+            if (stream == null) {
+                line.close();
+                return null;
+            }
+            LiveMonitor monitor = new LiveMonitor(stream, line, sampleRate);
+            line.start();
+            monitor.thread.start();
+            return monitor;
+        }
+        
+        // null bypasses processing; the chain is used only by the monitor thread from then on
+        public void setEffects(AudioProcessor effects) {
+            this.effects = effects;
+        }
+        
+        private void run() {
+            byte[] bytes = new byte[BLOCK_FRAMES * 2];
+            float[] block = new float[BLOCK_FRAMES];
+            short[] pcm = new short[BLOCK_FRAMES];
+            try {
+                while (running) {
+                    for (int read = 0; read < bytes.length; ) {
+                        int n = stream.read(bytes, read, bytes.length - read);
+                        if (n < 0) return;
+                        read += n;
+                    }
+                    AudioProcessor fx = effects;
+                    if (fx != null) {
+                        for (int i = 0; i < BLOCK_FRAMES; i++) {
+                            block[i] = (short)((bytes[2 * i] & 0xff) | bytes[2 * i + 1] << 8) / 32768f;
+                        }
+                        fx.process(block, 0, BLOCK_FRAMES);
+                        limiter.process(block, 0, BLOCK_FRAMES);
+                        toPcm16(block, 0, pcm, BLOCK_FRAMES);
+                        for (int i = 0; i < BLOCK_FRAMES; i++) {
+                            bytes[2 * i] = (byte)pcm[i];
+                            bytes[2 * i + 1] = (byte)(pcm[i] >> 8);
+                        }
+                    }
+                    line.write(bytes, 0, bytes.length);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            running = false;
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            line.close();
+            stream.close();
+        }
+    }
+    
+    // Peak limiter with instant attack and exponential release, applied before 16-bit conversion
+    static class Limiter {
+        private static final float THRESHOLD = 0.98f;
+        private final float release;
+        private float gain = 1f;
+        
+        public Limiter(int sampleRate) {
+            release = (float)(1.0 - Math.exp(-1.0 / (0.05 * sampleRate))); // ~50 ms
+        }
+        
+        public void process(float[] block, int offset, int count) {
+            float g = gain;
+            for (int i = offset, end = offset + count; i < end; i++) {
+                float peak = Math.abs(block[i]);
+                if (peak * g > THRESHOLD) g = THRESHOLD / peak;
+                block[i] *= g;
+                g += (1f - g) * release;
+            }
+            gain = g;
+        }
+    }
+    
+    // Persistent catalog of the recordings in a folder. Entries are kept in a small
+    // append-only journal that is replayed at startup, so the list fills without
+    // probing every file. A background thread reconciles the catalog with the folder
+    // once and then follows changes through a WatchService.
+    static class RecordingCatalog {
+        static final String FILE_NAME = ".vpdaw-catalog";
+        private static final int BATCH_SIZE = 500;
+        private static final long SETTLE_MS = 250;
+        
+        static final class Entry {
+            final String name;
+            final long size;
+            final long modified;
+            final long created;
+            final long durationMillis;
+            final int sampleRate;
+            final int noteCount;
+            
+            Entry(String name, long size, long modified, long created, long durationMillis, 
+                  int sampleRate, int noteCount) {
+                this.name = name;
+                this.size = size;
+                this.modified = modified;
+                this.created = created;
+                this.durationMillis = durationMillis;
+                this.sampleRate = sampleRate;
+                this.noteCount = noteCount;
+            }
+            
+            String toLine() {
+                return name + "\t" + size + "\t" + modified + "\t" + created + "\t" + durationMillis 
+                        + "\t" + sampleRate + "\t" + noteCount;
+            }
+            
+            static Entry fromLine(String[] fields) {
+                return new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3]), Long.parseLong(fields[4]), Integer.parseInt(fields[5]),
+                        Integer.parseInt(fields[6]));
+            }
+        }
+        
+        // Called on the catalog thread
+        interface Listener {
+            void added(List<Entry> entries);
+            void removed(String name);
+        }
+        
+        private final Path directory;
+        private final Path journal;
+        private final Map<String, Entry> entries = new LinkedHashMap<>();
+        private int journalLines;
+        private volatile Thread thread;
+        
+        public RecordingCatalog(Path directory) {
+            this.directory = directory;
+            this.journal = directory.resolve(FILE_NAME);
+        }
+        
+        public void start(Listener listener) {
+            thread = new Thread(() -> run(listener), "catalog");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        public void stop() {
+            Thread running = thread;
+            thread = null;
+            if (running != null) running.interrupt();
+        }
+        
+        public synchronized Entry get(String name) { return entries.get(name); }
+        public synchronized int size() { return entries.size(); }
+        
+        private void run(Listener listener) {
+            try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+                // Register first so nothing written during the initial pass is missed
+                directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                
+                List<Entry> loaded = load();
+                for (int i = 0; i < loaded.size(); i += BATCH_SIZE) {
+                    listener.added(loaded.subList(i, Math.min(loaded.size(), i + BATCH_SIZE)));
+                }
+                try {
+                    reconcile(listener);
+                } catch (IOException ex) {
+                    // Keep watching; files the pass missed are picked up when they next change
+                    ex.printStackTrace();
+                }
+                
+                Set<String> changed = new LinkedHashSet<>();
+                while (thread != null) {
+                    // Collect events until the folder settles, so a file being written is probed once
+                    WatchKey key = changed.isEmpty() ? watcher.take() : watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        for (String name : changed) refreshOrLog(name, listener);
+                        changed.clear();
+                        continue;
+                    }
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.context() == null) continue;
+                        String name = event.context().toString();
+                        if (name.endsWith(SessionFile.EXTENSION)) {
+                            String base = name.substring(0, name.length() - SessionFile.EXTENSION.length());
+                            name = base + (Files.exists(directory.resolve(base + ".flac")) ? ".flac" : ".wav");
+                        }
+                        if (AudioFiles.isAudioName(name)) changed.add(name);
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                // Stopped
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        
+        private List<Entry> load() throws IOException {
+            List<Entry> loaded;
+            synchronized (this) {
+                if (Files.exists(journal)) {
+                    try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            journalLines++;
+                            String[] fields = line.split("\t");
+                            try {
+                                if (fields.length == 2 && fields[0].equals("-")) {
+                                    entries.remove(fields[1]);
+                                } else if (fields.length == 7) {
+                                    entries.put(fields[0], Entry.fromLine(fields));
+                                }
+                            } catch (NumberFormatException ex) {
+                                // Skip a torn line from an interrupted write
+                            }
+                        }
+                    }
+                }
+                loaded = new ArrayList<>(entries.values());
+            }
+            if (journalLines > 2 * loaded.size() + 100) compact();
+            return loaded;
+        }
+        
+        // Brings the catalog in line with the folder after changes made while the app was closed
+        private void reconcile(Listener listener) throws IOException {
+            Set<String> present = new HashSet<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{wav,flac}")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    present.add(name);
+                    refreshOrLog(name, listener);
+                }
+            }
+            List<String> missing = new ArrayList<>();
+            synchronized (this) {
+                for (String name : entries.keySet()) {
+                    if (!present.contains(name)) missing.add(name);
+                }
+            }
+            for (String name : missing) refreshOrLog(name, listener);
+        }
+        
+        // A file that cannot be read, or a journal write that fails, skips that one
+        // recording instead of stopping the watcher
+        private void refreshOrLog(String name, Listener listener) {
+            try {
+                refresh(name, listener);
+            } catch (IOException ex) {
+                System.err.println("Catalog could not refresh " + name + ": " + ex);
+            }
+        }
+        
+        // Re-probes one recording if its file changed since it was cataloged
+        private void refresh(String name, Listener listener) throws IOException {
+            Path file = directory.resolve(name);
+            Entry existing = get(name);
+            
+            if (!Files.exists(file)) {
+                if (existing != null) {
+                    synchronized (this) {
+                        entries.remove(name);
+                    }
+                    append("-\t" + name);
+                    listener.removed(name);
+                }
+                return;
+            }
+            
+            long size = Files.size(file);
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            if (existing != null && existing.size == size && existing.modified == modified) return;
+            
+            Entry entry = probe(file, size, modified, existing != null ? existing.created : modified);
+            if (entry == null) return;
+            synchronized (this) {
+                entries.put(name, entry);
+            }
+            append(entry.toLine());
+            listener.added(Collections.singletonList(entry));
+        }
+        
+        // Reads the audio header and counts notes in the session file, if there is one
+        private Entry probe(Path file, long size, long modified, long created) throws IOException {
+            int sampleRate;
+            long durationMillis;
+            try (AudioInputStream audio = AudioFiles.openPcm(file)) {
+                sampleRate = (int)audio.getFormat().getSampleRate();
+                long frames = audio.getFrameLength();
+                durationMillis = frames > 0 && sampleRate > 0 ? frames * 1000 / sampleRate : 0;
+            } catch (UnsupportedAudioFileException | IOException ex) {
+                return null; // not audio, or still being written
+            }
+            
+            int noteCount = 0;
+            Path session = sessionPathFor(file.toString());
+            if (Files.exists(session)) {
+                try (SessionFile events = SessionFile.open(session)) {
+                    for (int i = 0; i < events.size(); i++) {
+                        if (events.getType(i) == EventLog.NOTE_ON) noteCount++;
+                    }
+                } catch (IOException ex) {
+                    // Session still being written; picked up by the next change event
+                }
+            }
+            return new Entry(file.getFileName().toString(), size, modified, created, durationMillis, 
+                    sampleRate, noteCount);
+        }
+        
+        private synchronized void append(String line) throws IOException {
+            Files.write(journal, Collections.singletonList(line), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            journalLines++;
+        }
+        
+        // Rewrites the journal with one line per live entry
+        private synchronized void compact() throws IOException {
+            List<String> lines = new ArrayList<>(entries.size());
+            for (Entry entry : entries.values()) lines.add(entry.toLine());
+            Path temp = journal.resolveSibling(FILE_NAME + ".tmp");
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journalLines = lines.size();
+        }
+    }
+    
+    // Compact binary event log stored next to each WAV.
+    //
+    // Layout (big-endian):
+    //   header   magic "VPDS", version, time base (ticks per second), tempo (BPM)
+    //   events   zigzag varint time delta, (type << 7 | note), velocity, channel (since version 2)
+    //   index    (byte offset, time before event) for every INDEX_INTERVAL-th event
+    //   trailer  event count, index offset, index count, magic "VPDX"
+    //
+    // Opened files are memory-mapped and decoded lazily, so loading only reads the
+    // header and index. Reads are not thread-safe: each reader should open its own view.
+    static class SessionFile implements EventSource, Closeable {
+        static final String EXTENSION = ".session";
+        private static final int MAGIC = 0x56504453;   // "VPDS"
+        private static final int END_MAGIC = 0x56504458; // "VPDX"
+        private static final int VERSION = 2;
+        private static final int HEADER_SIZE = 16;
+        private static final int TRAILER_SIZE = 20;
+        private static final int INDEX_INTERVAL = 1024;
+        private static final int MIDI_RESOLUTION = 480;
+        
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final int version;
+        private final int timeBase;
+        private final int tempo;
+        private final int count;
+        private final long[] indexOffsets;
+        private final long[] indexTimes;
+        
+        // Decoding cursor: the event at cursorIndex has been decoded into the fields below
+        private int cursorIndex = -1;
+        private int cursorOffset = HEADER_SIZE;
+        private long cursorTime;
+        private byte cursorType;
+        private int cursorChannel;
+        private int cursorNote;
+        private int cursorVelocity;
+        
+        private SessionFile(FileChannel channel) throws IOException {
+            this.channel = channel;
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a session file");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt((int)size - 4) != END_MAGIC) {
+                throw new IOException("Not a session file");
+            }
+            version = buffer.getInt(4);
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported session version " + version);
+            }
+            timeBase = buffer.getInt(8);
+            tempo = buffer.getInt(12);
+            
+            int trailer = (int)size - TRAILER_SIZE;
+            count = buffer.getInt(trailer);
+            int indexOffset = (int)buffer.getLong(trailer + 4);
+            int indexCount = buffer.getInt(trailer + 12);
+            indexOffsets = new long[indexCount];
+            indexTimes = new long[indexCount];
+            for (int i = 0; i < indexCount; i++) {
+                indexOffsets[i] = buffer.getLong(indexOffset + i * 16);
+                indexTimes[i] = buffer.getLong(indexOffset + i * 16 + 8);
+            }
+        }
+        
+        public static SessionFile open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                return new SessionFile(channel);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+        
+        // Writes the first events.size() events with times made relative to origin
+        public static void write(Path path, EventSource events, long origin, int timeBase, int tempo) 
+                throws IOException {
+            int count = events.size();
+            int indexCount = (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            long[] indexOffsets = new long[indexCount];
+            long[] indexTimes = new long[indexCount];
+            
+            try (CountingOutputStream counter = new CountingOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(path)));
+                 DataOutputStream out = new DataOutputStream(counter)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(timeBase);
+                out.writeInt(tempo);
+                
+                long previous = 0;
+                for (int i = 0; i < count; i++) {
+                    if (i % INDEX_INTERVAL == 0) {
+                        indexOffsets[i / INDEX_INTERVAL] = counter.count;
+                        indexTimes[i / INDEX_INTERVAL] = previous;
+                    }
+                    long time = events.getTime(i) - origin;
+                    long delta = time - previous;
+                    writeVarLong(out, (delta << 1) ^ (delta >> 63));
+                    out.writeByte(events.getType(i) << 7 | (events.getNote(i) & 0x7f));
+                    out.writeByte(events.getVelocity(i));
+                    out.writeByte(events.getChannel(i));
+                    previous = time;
+                }
+                
+                long indexOffset = counter.count;
+                for (int i = 0; i < indexCount; i++) {
+                    out.writeLong(indexOffsets[i]);
+                    out.writeLong(indexTimes[i]);
+                }
+                out.writeInt(count);
+                out.writeLong(indexOffset);
+                out.writeInt(indexCount);
+                out.writeInt(END_MAGIC);
+            }
+        }
+        
+        // Writes events as a single-track Standard MIDI File at the session tempo
+        public static void exportMidi(SessionFile session, File file) throws IOException {
+            try {
+                Sequence sequence = new Sequence(Sequence.PPQ, MIDI_RESOLUTION);
+                Track track = sequence.createTrack();
+                int bpm = session.getTempo();
+                int microsPerBeat = 60_000_000 / bpm;
+                byte[] tempoData = { (byte)(microsPerBeat >> 16), (byte)(microsPerBeat >> 8), (byte)microsPerBeat };
+                track.add(new MidiEvent(new MetaMessage(0x51, tempoData, 3), 0));
+                
+                for (int i = 0; i < session.size(); i++) {
+                    long tick = session.getTime(i) * bpm * MIDI_RESOLUTION / (60L * session.getTimeBase());
+                    int command = session.getType(i) == EventLog.NOTE_ON ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+                    int velocity = command == ShortMessage.NOTE_ON ? Math.max(1, session.getVelocity(i)) : 0;
+                    ShortMessage message = new ShortMessage(command, session.getChannel(i), session.getNote(i), velocity);
+                    track.add(new MidiEvent(message, Math.max(0, tick)));
+                }
+                MidiSystem.write(sequence, 0, file);
+            } catch (InvalidMidiDataException ex) {
+                throw new IOException(ex);
+            }
+        }
+        
+        // Converts a Standard MIDI File into a session file, honouring its tempo map
+        public static void importMidi(File file, Path path) throws IOException {
+            try {
+                Sequence sequence = MidiSystem.getSequence(file);
+                List<MidiEvent> midiEvents = new ArrayList<>();
+                for (Track track : sequence.getTracks()) {
+                    for (int i = 0; i < track.size(); i++) midiEvents.add(track.get(i));
+                }
+                midiEvents.sort((a, b) -> Long.compare(a.getTick(), b.getTick()));
+                
+                EventLog events = new EventLog();
+                int bpm = 0;
+                long microsPerBeat = 500_000;
+                long lastTick = 0;
+                double micros = 0;
+                for (MidiEvent event : midiEvents) {
+                    long tick = event.getTick();
+                    if (sequence.getDivisionType() == Sequence.PPQ) {
+                        micros += (double)(tick - lastTick) * microsPerBeat / sequence.getResolution();
+                    } else {
+                        micros = tick * 1_000_000.0 / (sequence.getDivisionType() * sequence.getResolution());
+                    }
+                    lastTick = tick;
+                    
+                    MidiMessage message = event.getMessage();
+                    if (message instanceof MetaMessage && ((MetaMessage)message).getType() == 0x51) {
+                        byte[] data = ((MetaMessage)message).getData();
+                        microsPerBeat = (data[0] & 0xff) << 16 | (data[1] & 0xff) << 8 | (data[2] & 0xff);
+                        if (bpm == 0) bpm = (int)Math.round(60_000_000.0 / microsPerBeat);
+                    } else if (message instanceof ShortMessage) {
+                        ShortMessage sm = (ShortMessage)message;
+                        long time = Math.round(micros * SAMPLE_RATE / 1_000_000.0);
+                        if (sm.getCommand() == ShortMessage.NOTE_ON && sm.getData2() > 0) {
+                            events.append(EventLog.NOTE_ON, sm.getChannel(), sm.getData1(), sm.getData2(), time);
+                        } else if (sm.getCommand() == ShortMessage.NOTE_ON || sm.getCommand() == ShortMessage.NOTE_OFF) {
+                            events.append(EventLog.NOTE_OFF, sm.getChannel(), sm.getData1(), 0, time);
+                        }
+                    }
+                }
+                write(path, events, 0, SAMPLE_RATE, bpm == 0 ? 120 : bpm);
+            } catch (InvalidMidiDataException ex) {
+                throw new IOException(ex);
+            }
+        }
+        
+        public int getTimeBase() { return timeBase; }
+        public int getTempo() { return tempo; }
+        
+        @Override public int size() { return count; }
+        @Override public byte getType(int i) { seek(i); return cursorType; }
+        @Override public int getChannel(int i) { seek(i); return cursorChannel; }
+        @Override public int getNote(int i) { seek(i); return cursorNote; }
+        @Override public int getVelocity(int i) { seek(i); return cursorVelocity; }
+        @Override public long getTime(int i) { seek(i); return cursorTime; }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+        
+        // Sequential access decodes one event; random access restarts from the nearest index entry
+        private void seek(int i) {
+            if (i == cursorIndex) return;
+            if (i < cursorIndex || i - cursorIndex > INDEX_INTERVAL) {
+                int entry = i / INDEX_INTERVAL;
+                cursorIndex = entry * INDEX_INTERVAL - 1;
+                cursorOffset = (int)indexOffsets[entry];
+                cursorTime = indexTimes[entry];
+            }
+            while (cursorIndex < i) {
+                long zigzag = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = buffer.get(cursorOffset++);
+                    zigzag |= (long)(b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                cursorTime += (zigzag >>> 1) ^ -(zigzag & 1);
+                int typeNote = buffer.get(cursorOffset++) & 0xff;
+                cursorType = (byte)(typeNote >> 7);
+                cursorNote = typeNote & 0x7f;
+                cursorVelocity = buffer.get(cursorOffset++) & 0xff;
+                cursorChannel = version >= 2 ? buffer.get(cursorOffset++) & 0x0f : 0;
+                cursorIndex++;
+            }
+        }
+        
+        private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                out.writeByte((int)(value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int)value);
+        }
+        
+        private static class CountingOutputStream extends FilterOutputStream {
+            long count;
+            
+            CountingOutputStream(OutputStream out) { super(out); }
+            
+            @Override public void write(int b) throws IOException { out.write(b); count++; }
+            @Override public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); count += len; }
+        }
+    }
+    
+    // Streams WAV files to a single reused SourceDataLine from a fixed-size buffer, so
+    // memory does not depend on file length. Files queued together play back to back
+    // without draining the line in between. Play, seek and stop replace the current request.
+    // Streaming runs as tasks on the shared NoteScheduler: each one tops the line up with as
+    // much as it takes without blocking, then comes back a quarter of a buffer later.
+    static class WavPlayer {
+        private static final int BUFFER_FRAMES = 4096;
+        private static final int REFILLS_PER_BUFFER = 4;
+        
+        private final NoteScheduler scheduler;
+        private final LatencyHistogram startLatency = Metrics.REGISTRY.histogram("wav.start_latency_us");
+        private final Metrics.Counter underruns = Metrics.REGISTRY.counter("wav.underruns");
+        private final AtomicLong generation = new AtomicLong();
+        
+        // Owned by the scheduler thread
+        private SourceDataLine line;
+        private byte[] buffer = new byte[0];
+        private Stream stream;
+        
+        // Current request, for seeking
+        private volatile List<Path> queue = Collections.emptyList();
+        private volatile int queueIndex;
+        private volatile long positionFrames;
+        private volatile Runnable onFinished;
+        private volatile Consumer<Exception> onError;
+        
+        public WavPlayer(NoteScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+        
+        public void play(List<Path> files, long startFrame, Runnable onFinished, Consumer<Exception> onError) {
+            long requested = System.nanoTime();
+            long gen = generation.incrementAndGet();
+            List<Path> copy = new ArrayList<>(files);
+            this.queue = copy;
+            this.onFinished = onFinished;
+            this.onError = onError;
+            scheduler.execute(() -> begin(new Stream(gen, requested, copy, onFinished, onError), 0, startFrame));
+        }
+        
+        // Jumps to a frame in the file that is currently playing
+        public void seek(long frame) {
+            List<Path> files = queue;
+            int index = queueIndex;
+            if (index >= files.size()) return;
+            long requested = System.nanoTime();
+            long gen = generation.incrementAndGet();
+            Stream request = new Stream(gen, requested, files, onFinished, onError);
+            scheduler.execute(() -> begin(request, index, Math.max(0, frame)));
+        }
+        
+        public void stop() {
+            generation.incrementAndGet();
+            scheduler.execute(() -> {
+                closeStream();
+                if (line != null) {
+                    line.stop();
+                    line.flush();
+                }
+            });
+        }
+        
+        public long getPositionFrames() { return positionFrames; }
+        
+        // Time from a play or seek request until its first buffer reached the line, in microseconds
+        public long getStartLatencyMicros(double percentile) { return startLatency.getPercentile(percentile); }
+        
+        public void close() {
+            generation.incrementAndGet();
+            scheduler.execute(() -> {
+                closeStream();
+                if (line != null) line.close();
+                line = null;
+            });
+        }
+        
+        private void begin(Stream request, int index, long startFrame) {
+            if (generation.get() != request.gen) return;
+            closeStream();
+            if (line != null) {
+                line.stop();
+                line.flush();
+            }
+            stream = request;
+            try {
+                request.open(index, startFrame);
+                pump(request);
+            } catch (Exception ex) {
+                fail(request, ex);
+            }
+        }
+        
+        // Writes what the line can take without blocking, moving on to the next file at the
+        // end of each one, and reschedules itself until the queue has played out
+        private void pump(Stream request) {
+            if (generation.get() != request.gen || stream != request) return;
+            try {
+                while (true) {
+                    if (request.in == null) {
+                        // Queue exhausted; finish once the line has played what it holds
+                        if (line != null && line.available() < line.getBufferSize()) {
+                            refillLater(request);
+                            return;
+                        }
+                        stream = null;
+                        if (request.finished != null) request.finished.run();
+                        return;
+                    }
+                    AudioFormat format = request.in.getFormat();
+                    if (line == null || !line.getFormat().matches(format)) {
+                        // Let the previous file play out before switching formats
+                        if (line != null && line.available() < line.getBufferSize()) {
+                            refillLater(request);
+                            return;
+                        }
+                        openLine(format);
+                    }
+                    int frameSize = format.getFrameSize();
+                    int room = Math.min(line.available(), buffer.length);
+                    room -= room % frameSize;
+                    if (room == 0) {
+                        refillLater(request);
+                        return;
+                    }
+                    int read = request.in.read(buffer, 0, room);
+                    if (read <= 0) {
+                        request.next();
+                        continue;
+                    }
+                    // A started line with nothing queued has already played silence
+                    if (!request.first && line.available() >= line.getBufferSize()) underruns.increment();
+                    line.write(buffer, 0, read);
+                    if (!line.isRunning()) line.start();
+                    if (request.first) {
+                        startLatency.record((System.nanoTime() - request.requested) / 1000);
+                        request.first = false;
+                    }
+                    positionFrames += read / frameSize;
+                }
+            } catch (Exception ex) {
+                fail(request, ex);
+            }
+        }
+        
+        private void refillLater(Stream request) {
+            float frameRate = line != null ? line.getFormat().getFrameRate() : SAMPLE_RATE;
+            long nanos = (long)(BUFFER_FRAMES * 1e9 / frameRate / REFILLS_PER_BUFFER);
+            scheduler.schedule(System.nanoTime() + nanos, () -> pump(request));
+        }
+        
+        private void fail(Stream request, Exception ex) {
+            closeStream();
+            if (request.error != null) request.error.accept(ex);
+        }
+        
+        private void closeStream() {
+            if (stream == null) return;
+            stream.close();
+            stream = null;
+        }
+        
+        // Consecutive files in the line's format are written to it directly so they join
+        // without a gap; this only runs for a new format, once the old line has played out
+        private void openLine(AudioFormat format) throws LineUnavailableException {
+            if (line != null) line.close();
+            int bytes = bufferBytes(format);
+            line = AudioSystem.getSourceDataLine(format);
+            line.open(format, bytes);
+            buffer = new byte[bytes];
+        }
+        
+        // Decoded stream positioned at startFrame, as a play or seek request opens it
+        static AudioInputStream openAt(Path file, long startFrame) throws IOException, UnsupportedAudioFileException {
+            AudioInputStream in = AudioFiles.openPcm(file);
+            try {
+                skipFully(in, startFrame * in.getFormat().getFrameSize());
+                return in;
+            } catch (IOException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+        
+        // Bytes in one line buffer of the given format
+        static int bufferBytes(AudioFormat format) {
+            return BUFFER_FRAMES * format.getFrameSize();
+        }
+        
+        private static void skipFully(InputStream in, long bytes) throws IOException {
+            while (bytes > 0) {
+                long skipped = in.skip(bytes);
+                if (skipped <= 0) return;
+                bytes -= skipped;
+            }
+        }
+        
+        // One play or seek request and the file it is reading
+        private final class Stream {
+            final long gen;
+            final long requested;
+            final List<Path> files;
+            final Runnable finished;
+            final Consumer<Exception> error;
+            AudioInputStream in;
+            int index;
+            boolean first = true;
+            
+            Stream(long gen, long requested, List<Path> files, Runnable finished, Consumer<Exception> error) {
+                this.gen = gen;
+                this.requested = requested;
+                this.files = files;
+                this.finished = finished;
+                this.error = error;
+            }
+            
+            void open(int index, long skipFrames) throws IOException, UnsupportedAudioFileException {
+                close();
+                this.index = index;
+                queueIndex = index;
+                if (index >= files.size()) return;
+                in = openAt(files.get(index), skipFrames);
+                positionFrames = skipFrames;
+            }
+            
+            void next() throws IOException, UnsupportedAudioFileException {
+                open(index + 1, 0);
+            }
+            
+            void close() {
+                if (in == null) return;
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                in = null;
+            }
+        }
+    }
+
+    // Multi-resolution min/max summary of a recording, stored in a sidecar next to the WAV.
+    // Levels hold one (min, max) pair per 256, 4096 and 65536 samples; a preview reads
+    // only the level that matches its width, so an hour-long take draws from a few KB.
+    //
+    // Layout (big-endian): magic "VPPK", version, sample rate, total samples, level count,
+    // then (samples per peak, peak count, data offset) per level, then each level's pairs.
+    static class PeakSummary {
+        static final String EXTENSION = ".peaks";
+        static final int[] SAMPLES_PER_PEAK = {256, 4096, 65536};
+        private static final int MAGIC = 0x5650504B; // "VPPK"
+        private static final int VERSION = 1;
+        
+        private final Path path;
+        private final int sampleRate;
+        private final long totalSamples;
+        private final int[] peakCounts;
+        private final long[] offsets;
+        private final short[][] levels; // interleaved min/max, loaded on first use
+        
+        private PeakSummary(Path path, int sampleRate, long totalSamples, int[] peakCounts, long[] offsets) {
+            this.path = path;
+            this.sampleRate = sampleRate;
+            this.totalSamples = totalSamples;
+            this.peakCounts = peakCounts;
+            this.offsets = offsets;
+            this.levels = new short[peakCounts.length][];
+        }
+        
+        // Reads only the header; level data is loaded when a preview first asks for it
+        public static PeakSummary open(Path path) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a peak file: " + path);
+                }
+                int sampleRate = in.readInt();
+                long totalSamples = in.readLong();
+                int levelCount = in.readInt();
+                int[] peakCounts = new int[levelCount];
+                long[] offsets = new long[levelCount];
+                for (int i = 0; i < levelCount; i++) {
+                    if (in.readInt() != SAMPLES_PER_PEAK[i]) throw new IOException("Unexpected peak level");
+                    peakCounts[i] = in.readInt();
+                    offsets[i] = in.readLong();
+                }
+                return new PeakSummary(path, sampleRate, totalSamples, peakCounts, offsets);
+            }
+        }
+        
+        // Summarises an existing recording in one streaming pass and writes its sidecar
+        public static PeakSummary generate(Path wav) throws IOException {
+            try (AudioInputStream source = AudioFiles.openPcm(wav)) {
+                AudioFormat format = source.getFormat();
+                AudioFormat pcm = new AudioFormat(format.getSampleRate(), 16, 1, true, false);
+                try (AudioInputStream in = AudioSystem.getAudioInputStream(pcm, source)) {
+                    Builder builder = new Builder((int)format.getSampleRate());
+                    byte[] bytes = new byte[RENDER_BLOCK_FRAMES * 2];
+                    short[] samples = new short[RENDER_BLOCK_FRAMES];
+                    int carry = 0;
+                    int read;
+                    while ((read = in.read(bytes, carry, bytes.length - carry)) > 0) {
+                        int available = carry + read;
+                        int count = available / 2;
+                        for (int i = 0; i < count; i++) {
+                            samples[i] = (short)((bytes[2 * i] & 0xff) | bytes[2 * i + 1] << 8);
+                        }
+                        builder.add(samples, count);
+                        carry = available & 1;
+                        if (carry == 1) bytes[0] = bytes[available - 1];
+                    }
+                    Path target = peaksPathFor(wav.toString());
+                    builder.write(target);
+                    return open(target);
+                }
+            } catch (UnsupportedAudioFileException | IllegalArgumentException ex) {
+                throw new IOException("Cannot read " + wav, ex);
+            }
+        }
+        
+        public int getSampleRate() { return sampleRate; }
+        public long getTotalSamples() { return totalSamples; }
+        
+        // Fills one (min, max) pair per pixel column from the coarsest level that still
+        // has at least one peak per column
+        public void render(int width, short[] mins, short[] maxs) throws IOException {
+            int level = 0;
+            while (level + 1 < peakCounts.length && peakCounts[level + 1] >= width) level++;
+            short[] data = level(level);
+            int count = peakCounts[level];
+            
+            for (int x = 0; x < width; x++) {
+                int from = (int)((long)x * count / width);
+                int to = Math.max(from + 1, (int)((long)(x + 1) * count / width));
+                short min = 0, max = 0;
+                for (int i = from; i < to && i < count; i++) {
+                    if (data[2 * i] < min) min = data[2 * i];
+                    if (data[2 * i + 1] > max) max = data[2 * i + 1];
+                }
+                mins[x] = min;
+                maxs[x] = max;
+            }
+        }
+        
+        // Approximate heap held by the loaded levels
+        public synchronized long getLoadedBytes() {
+            long bytes = 0;
+            for (short[] level : levels) if (level != null) bytes += level.length * 2L;
+            return bytes;
+        }
+        
+        private synchronized short[] level(int level) throws IOException {
+            if (levels[level] == null) {
+                ByteBuffer buffer = ByteBuffer.allocate(peakCounts[level] * 4);
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    while (buffer.hasRemaining() && channel.read(buffer, offsets[level] + buffer.position()) >= 0) { }
+                }
+                buffer.flip();
+                short[] data = new short[peakCounts[level] * 2];
+                buffer.asShortBuffer().get(data);
+                levels[level] = data;
+            }
+            return levels[level];
+        }
+        
+        // Accumulates peaks while samples stream past. Only the finest level looks at
+        // samples; each coarser level is folded from the one below it.
+        static class Builder {
+            private final int sampleRate;
+            private final ShortList[] levels = new ShortList[SAMPLES_PER_PEAK.length];
+            private final short[] mins = new short[SAMPLES_PER_PEAK.length];
+            private final short[] maxs = new short[SAMPLES_PER_PEAK.length];
+            private final int[] filled = new int[SAMPLES_PER_PEAK.length];
+            private long totalSamples;
+            
+            Builder(int sampleRate) {
+                this.sampleRate = sampleRate;
+                for (int i = 0; i < levels.length; i++) {
+                    levels[i] = new ShortList();
+                    resetPeak(i);
+                }
+            }
+            
+            public void add(short[] samples, int count) {
+                short min = mins[0], max = maxs[0];
+                int n = filled[0];
+                for (int i = 0; i < count; i++) {
+                    short sample = samples[i];
+                    if (sample < min) min = sample;
+                    if (sample > max) max = sample;
+                    if (++n == SAMPLES_PER_PEAK[0]) {
+                        emit(0, min, max);
+                        min = Short.MAX_VALUE;
+                        max = Short.MIN_VALUE;
+                        n = 0;
+                    }
+                }
+                mins[0] = min;
+                maxs[0] = max;
+                filled[0] = n;
+                totalSamples += count;
+            }
+            
+            public void write(Path path) throws IOException {
+                // Flush partial peaks at the end of the take
+                for (int level = 0; level < levels.length; level++) {
+                    if (filled[level] > 0) emit(level, mins[level], maxs[level]);
+                }
+                
+                int levelCount = levels.length;
+                long offset = 4 + 4 + 4 + 8 + 4 + levelCount * 16L;
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(sampleRate);
+                    out.writeLong(totalSamples);
+                    out.writeInt(levelCount);
+                    for (int level = 0; level < levelCount; level++) {
+                        out.writeInt(SAMPLES_PER_PEAK[level]);
+                        out.writeInt(levels[level].size / 2);
+                        out.writeLong(offset);
+                        offset += levels[level].size * 2L;
+                    }
+                    for (ShortList level : levels) {
+                        for (int i = 0; i < level.size; i++) out.writeShort(level.data[i]);
+                    }
+                }
+            }
+            
+            private void emit(int level, short min, short max) {
+                levels[level].add(min);
+                levels[level].add(max);
+                resetPeak(level);
+                
+                int parent = level + 1;
+                if (parent < levels.length) {
+                    if (min < mins[parent]) mins[parent] = min;
+                    if (max > maxs[parent]) maxs[parent] = max;
+                    if (++filled[parent] == SAMPLES_PER_PEAK[parent] / SAMPLES_PER_PEAK[level]) {
+                        emit(parent, mins[parent], maxs[parent]);
+                    }
+                }
+            }
+            
+            private void resetPeak(int level) {
+                mins[level] = Short.MAX_VALUE;
+                maxs[level] = Short.MIN_VALUE;
+                filled[level] = 0;
+            }
+        }
+        
+        private static final class ShortList {
+            short[] data = new short[256];
+            int size;
+            
+            void add(short value) {
+                if (size == data.length) data = Arrays.copyOf(data, size * 2);
+                data[size++] = value;
+            }
+        }
+    }
+    
+    // Keeps recently used peak summaries in memory up to a byte budget, evicting the
+    // least recently used first. Missing sidecars are generated on demand.
+    static class PeakCache {
+        private final long maxBytes;
+        private final LinkedHashMap<String, PeakSummary> summaries = new LinkedHashMap<>(16, 0.75f, true);
+        
+        public PeakCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+        
+        public synchronized PeakSummary get(String wavName) throws IOException {
+            PeakSummary summary = summaries.get(wavName);
+            if (summary == null) {
+                Path sidecar = peaksPathFor(wavName);
+                summary = Files.exists(sidecar) ? PeakSummary.open(sidecar) : PeakSummary.generate(Paths.get(wavName));
+                summaries.put(wavName, summary);
+            }
+            trim(summary);
+            return summary;
+        }
+        
+        public synchronized void invalidate(String wavName) {
+            summaries.remove(wavName);
+        }
+        
+        private void trim(PeakSummary keep) {
+            long total = 0;
+            for (PeakSummary summary : summaries.values()) total += summary.getLoadedBytes();
+            Iterator<Map.Entry<String, PeakSummary>> eldest = summaries.entrySet().iterator();
+            while (total > maxBytes && eldest.hasNext()) {
+                PeakSummary summary = eldest.next().getValue();
+                if (summary == keep) continue;
+                total -= summary.getLoadedBytes();
+                eldest.remove();
+            }
+        }
+    }
+    
+    // Archive formats for rendered takes. Every format is written by a streaming
+    // SampleWriter and read back through openPcm() as 16-bit PCM, so renders encode
+    // block by block and playback decodes on the fly with no temporary WAV.
+    static final class AudioFiles {
+        static final int FORMAT_PCM = 0;
+        static final int FORMAT_FLAC = 1;
+        static final int FORMAT_IMA_ADPCM = 2;
+        static final int FORMAT_COUNT = 3;
+        
+        private static final String[] NAMES = {"wav", "flac", "adpcm"};
+        private static final String[] EXTENSIONS = {".wav", ".flac", ".wav"};
+        
+        private AudioFiles() {}
+        
+        public static String getName(int format) { return NAMES[format]; }
+        public static String getExtension(int format) { return EXTENSIONS[format]; }
+        
+        // Returns -1 for an unknown name
+        public static int parseFormat(String name) {
+            return Arrays.asList(NAMES).indexOf(name.toLowerCase(Locale.ROOT));
+        }
+        
+        public static boolean isAudioName(String name) {
+            return name.endsWith(".wav") || name.endsWith(".flac");
+        }
+        
+        // File name without its audio extension
+        public static String baseName(String name) {
+            if (name.endsWith(".wav")) return name.substring(0, name.length() - ".wav".length());
+            if (name.endsWith(".flac")) return name.substring(0, name.length() - ".flac".length());
+            return name;
+        }
+        
+        public static SampleWriter openWriter(Path path, int format, int sampleRate, int blockFrames)
+                throws IOException {
+            switch (format) {
+                case FORMAT_FLAC: return new FlacWriter(path, sampleRate);
+                case FORMAT_IMA_ADPCM: return new AdpcmWriter(path, sampleRate);
+                default: return new WavWriter(path.toString(), sampleRate, 16, 1, blockFrames);
+            }
+        }
+        
+        // Identifies the codec from the first bytes of the file
+        public static int detectFormat(Path path) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                while (header.hasRemaining() && channel.read(header) >= 0) { }
+            }
+            header.flip();
+            if (header.remaining() >= 4 && header.getInt(0) == 0x43614c66) return FORMAT_FLAC; // "fLaC"
+            if (header.remaining() >= 12 && header.getInt(0) == 0x46464952 && header.getInt(8) == 0x45564157) {
+                // Walk the chunks before "data" looking for the format tag
+                int offset = 12;
+                while (offset + 10 <= header.remaining()) {
+                    int id = header.getInt(offset);
+                    int size = header.getInt(offset + 4);
+                    if (id == 0x20746d66) { // "fmt "
+                        return header.getShort(offset + 8) == AdpcmWriter.FORMAT_TAG ? FORMAT_IMA_ADPCM : FORMAT_PCM;
+                    }
+                    if (size < 0) break;
+                    offset += 8 + size + (size & 1);
+                }
+            }
+            return FORMAT_PCM;
+        }
+        
+        // Opens any supported file as a stream of 16-bit PCM; compressed files are decoded
+        // as the stream is read
+        public static AudioInputStream openPcm(Path path) throws IOException, UnsupportedAudioFileException {
+            switch (detectFormat(path)) {
+                case FORMAT_FLAC: return FlacReader.open(path);
+                case FORMAT_IMA_ADPCM: return AdpcmReader.open(path);
+                default: return AudioSystem.getAudioInputStream(path.toFile());
+            }
+        }
+        
+        // Re-encodes a file one block at a time and writes its peaks sidecar. The stats carry
+        // the source's own sample rate.
+        public static RenderStats transcode(Path in, Path out, int format) 
+                throws IOException, UnsupportedAudioFileException {
+            long startNanos = System.nanoTime();
+            try (AudioInputStream source = openPcm(in)) {
+                int sampleRate = (int)source.getFormat().getSampleRate();
+                AudioFormat pcm = new AudioFormat(sampleRate, 16, 1, true, false);
+                PeakSummary.Builder peaks = new PeakSummary.Builder(sampleRate);
+                long frames;
+                try (AudioInputStream decoded = AudioSystem.getAudioInputStream(pcm, source);
+                     SampleWriter writer = openWriter(out, format, sampleRate, RENDER_BLOCK_FRAMES)) {
+                    writer.setPeaks(peaks);
+                    byte[] bytes = new byte[RENDER_BLOCK_FRAMES * 2];
+                    short[] samples = new short[RENDER_BLOCK_FRAMES];
+                    int carry = 0;
+                    int read;
+                    while ((read = decoded.read(bytes, carry, bytes.length - carry)) > 0) {
+                        int available = carry + read;
+                        int count = available / 2;
+                        for (int i = 0; i < count; i++) {
+                            samples[i] = (short)((bytes[2 * i] & 0xff) | bytes[2 * i + 1] << 8);
+                        }
+                        writer.write(samples, count);
+                        carry = available & 1;
+                        if (carry == 1) bytes[0] = bytes[available - 1];
+                    }
+                    frames = writer.getFrames();
+                }
+                peaks.write(peaksPathFor(out.toString()));
+                return new RenderStats(frames, sampleRate, System.nanoTime() - startNanos);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Cannot read " + in, ex);
+            }
+        }
+    }
+    
+    // MSB-first bit packer for FLAC frames. The buffer grows as needed, since a badly
+    // predicted block can take more room than its raw samples.
+    static final class BitWriter {
+        private byte[] bytes;
+        private int length;
+        private long pending;
+        private int pendingBits;
+        
+        BitWriter(int capacity) {
+            bytes = new byte[capacity];
+        }
+        
+        void reset() {
+            length = 0;
+            pendingBits = 0;
+        }
+        
+        // Low `count` bits of value, 0-32
+        void write(int value, int count) {
+            pending = pending << count | (value & 0xFFFFFFFFL) & ((1L << count) - 1);
+            pendingBits += count;
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+                bytes[length++] = (byte)(pending >>> pendingBits);
+            }
+        }
+        
+        // `zeros` zero bits followed by a one
+        void writeUnary(int zeros) {
+            while (zeros >= 32) {
+                write(0, 32);
+                zeros -= 32;
+            }
+            write(1, zeros + 1);
+        }
+        
+        void writeRice(int value, int parameter) {
+            int folded = value << 1 ^ value >> 31;
+            writeUnary(folded >>> parameter);
+            write(folded, parameter);
+        }
+        
+        void alignToByte() {
+            if ((pendingBits & 7) != 0) write(0, 8 - (pendingBits & 7));
+        }
+        
+        int length() { return length; }
+        byte[] bytes() { return bytes; }
+    }
+    
+    // CRC-8 (poly 0x07) for FLAC frame headers and CRC-16 (poly 0x8005) for whole frames
+    static final class FlacCrc {
+        static final int[] CRC8 = new int[256];
+        static final int[] CRC16 = new int[256];
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc8 = i;
+                int crc16 = i << 8;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc8 = (crc8 & 0x80) != 0 ? crc8 << 1 ^ 0x07 : crc8 << 1;
+                    crc16 = (crc16 & 0x8000) != 0 ? crc16 << 1 ^ 0x8005 : crc16 << 1;
+                }
+                CRC8[i] = crc8 & 0xff;
+                CRC16[i] = crc16 & 0xffff;
+            }
+        }
+        
+        private FlacCrc() {}
+        
+        static int crc8(byte[] data, int from, int to) {
+            int crc = 0;
+            for (int i = from; i < to; i++) crc = CRC8[crc ^ data[i] & 0xff];
+            return crc;
+        }
+        
+        static int crc16(byte[] data, int from, int to) {
+            int crc = 0;
+            for (int i = from; i < to; i++) crc = (crc << 8 ^ CRC16[crc >>> 8 ^ data[i] & 0xff]) & 0xffff;
+            return crc;
+        }
+    }
+    
+    // Streaming lossless encoder writing standard FLAC (16-bit mono, fixed 4096-frame
+    // blocks, within the streamable subset). Samples are buffered until a block is full,
+    // then encoded as one frame, so memory stays flat however long the take is. Each block
+    // is coded with whichever predictor needs the fewest bits: a constant for silence, a
+    // fixed polynomial predictor of order 0-4, or an order-8 LPC fitted to the block. The
+    // residual is Rice coded in up to 64 partitions with their own parameters. Closing
+    // rewrites the stream info with the length and MD5 of the audio, which any FLAC
+    // decoder, ours included, checks when it reaches the end.
+    static class FlacWriter implements SampleWriter {
+        static final int BLOCK_SIZE = 4096;
+        private static final int MAX_FIXED_ORDER = 4;
+        private static final int LPC_ORDER = 8;
+        private static final int LPC_PRECISION = 12;
+        private static final int MAX_PARTITION_ORDER = 6;
+        private static final int MAX_RICE_PARAMETER = 14;
+        static final int STREAM_INFO_SIZE = 34;
+        private static final int[] STANDARD_RATES =
+                {0, 88200, 176400, 192000, 8000, 16000, 22050, 24000, 32000, 44100, 48000, 96000};
+        
+        private final FileChannel channel;
+        private final int sampleRate;
+        private final MessageDigest md5;
+        private final byte[] md5Block = new byte[BLOCK_SIZE * 2];
+        private final int[] block = new int[BLOCK_SIZE];
+        private int[] residual = new int[BLOCK_SIZE];
+        private int[] bestResidual = new int[BLOCK_SIZE];
+        private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+        private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+        private final int[] bestRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+        private final int[] scratchParameters = new int[1 << MAX_PARTITION_ORDER];
+        private final double[] window = new double[BLOCK_SIZE];
+        private final int[] coefficients = new int[LPC_ORDER];
+        private final BitWriter bits = new BitWriter(BLOCK_SIZE * 2 + 64);
+        private int filled;
+        private int partitionOrder;
+        private int bestPartitionOrder;
+        private long frames;
+        private long frameNumber;
+        private int minFrameSize = Integer.MAX_VALUE;
+        private int maxFrameSize;
+        private PeakSummary.Builder peaks;
+        
+        public FlacWriter(Path path, int sampleRate) throws IOException {
+            if (sampleRate <= 0 || sampleRate >= 1 << 20) throw new IOException("Unsupported sample rate " + sampleRate);
+            this.sampleRate = sampleRate;
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IOException(ex);
+            }
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            writeFully(ByteBuffer.wrap(streamInfo(new byte[16])));
+        }
+        
+        @Override
+        public void write(short[] samples, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                block[filled++] = samples[i];
+                if (filled == BLOCK_SIZE) encodeBlock();
+            }
+            frames += count;
+            if (peaks != null) peaks.add(samples, count);
+        }
+        
+        @Override public void setPeaks(PeakSummary.Builder peaks) { this.peaks = peaks; }
+        @Override public long getFrames() { return frames; }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                if (filled > 0) encodeBlock();
+                channel.position(0);
+                writeFully(ByteBuffer.wrap(streamInfo(md5.digest())));
+            } finally {
+                channel.close();
+            }
+        }
+        
+        // "fLaC" followed by the stream info block, the only metadata written
+        private byte[] streamInfo(byte[] digest) {
+            ByteBuffer header = ByteBuffer.allocate(8 + STREAM_INFO_SIZE);
+            header.putInt(0x664c6143);
+            header.putInt(0x80 << 24 | STREAM_INFO_SIZE); // last block, type 0
+            header.putShort((short)BLOCK_SIZE).putShort((short)BLOCK_SIZE);
+            int minFrame = maxFrameSize == 0 ? 0 : minFrameSize;
+            header.put((byte)(minFrame >>> 16)).putShort((short)minFrame);
+            header.put((byte)(maxFrameSize >>> 16)).putShort((short)maxFrameSize);
+            header.putLong((long)sampleRate << 44 | 15L << 36 | frames & 0xFFFFFFFFFL); // mono, 16 bits
+            header.put(digest);
+            return header.array();
+        }
+        
+        private void encodeBlock() throws IOException {
+            int n = filled;
+            filled = 0;
+            for (int i = 0; i < n; i++) {
+                md5Block[2 * i] = (byte)block[i];
+                md5Block[2 * i + 1] = (byte)(block[i] >> 8);
+            }
+            md5.update(md5Block, 0, 2 * n);
+            
+            bits.reset();
+            writeFrameHeader(n);
+            writeSubframe(n);
+            bits.alignToByte();
+            bits.write(FlacCrc.crc16(bits.bytes(), 0, bits.length()), 16);
+            
+            int size = bits.length();
+            minFrameSize = Math.min(minFrameSize, size);
+            maxFrameSize = Math.max(maxFrameSize, size);
+            writeFully(ByteBuffer.wrap(bits.bytes(), 0, size));
+        }
+        
+        private void writeFrameHeader(int n) {
+            bits.write(0xFFF8, 16); // sync, fixed block size
+            bits.write(n == BLOCK_SIZE ? 0b1100 : 0b0111, 4);
+            int rateCode = 0;
+            for (int code = 1; code < STANDARD_RATES.length; code++) {
+                if (STANDARD_RATES[code] == sampleRate) rateCode = code;
+            }
+            if (rateCode == 0) {
+                if (sampleRate % 1000 == 0 && sampleRate / 1000 < 256) rateCode = 0b1100;
+                else if (sampleRate < 65536) rateCode = 0b1101;
+                else rateCode = 0b1110;
+            }
+            bits.write(rateCode, 4);
+            bits.write(0, 4);      // one channel
+            bits.write(0b100, 3);  // 16 bits per sample
+            bits.write(0, 1);
+            
+            // Frame number, in the extended UTF-8 coding FLAC uses
+            long number = frameNumber++;
+            if (number < 0x80) {
+                bits.write((int)number, 8);
+            } else {
+                int extra = 1;
+                while (extra < 6 && number >= 1L << (5 * extra + 6)) extra++;
+                bits.write((0xFF00 >> extra + 1 & 0xFF) | (int)(number >>> 6 * extra), 8);
+                for (int shift = 6 * (extra - 1); shift >= 0; shift -= 6) {
+                    bits.write(0x80 | (int)(number >>> shift) & 0x3F, 8);
+                }
+            }
+            if (n != BLOCK_SIZE) bits.write(n - 1, 16);
+            if (rateCode == 0b1100) bits.write(sampleRate / 1000, 8);
+            else if (rateCode == 0b1101) bits.write(sampleRate, 16);
+            else if (rateCode == 0b1110) bits.write(sampleRate / 10, 16);
+            bits.write(FlacCrc.crc8(bits.bytes(), 0, bits.length()), 8);
+        }
+        
+        private void writeSubframe(int n) {
+            boolean constant = true;
+            for (int i = 1; i < n && constant; i++) constant = block[i] == block[0];
+            if (constant) {
+                bits.write(0, 8);
+                bits.write(block[0], 16);
+                return;
+            }
+            
+            // Estimate each predictor's size and keep the residual of the best one
+            long bestBits = 16L * n; // verbatim
+            int bestType = -1;
+            for (int order = 0; order <= MAX_FIXED_ORDER && order < n; order++) {
+                fixedResidual(order, n);
+                long cost = 16L * order + chooseRice(order, n);
+                if (cost < bestBits) {
+                    bestBits = cost;
+                    bestType = order;
+                    keepBest();
+                }
+            }
+            int shift = n > 2 * LPC_ORDER ? fitLpc(n) : -1;
+            if (shift >= 0) {
+                lpcResidual(shift, n);
+                long cost = 16L * LPC_ORDER + 4 + 5 + LPC_PRECISION * LPC_ORDER + chooseRice(LPC_ORDER, n);
+                if (cost < bestBits) {
+                    bestType = LPC_ORDER + 32;
+                    keepBest();
+                }
+            }
+            
+            if (bestType < 0) {
+                bits.write(0b10, 8); // verbatim
+                for (int i = 0; i < n; i++) bits.write(block[i], 16);
+                return;
+            }
+            int order = bestType < 32 ? bestType : bestType - 32;
+            bits.write(bestType < 32 ? (0b001000 | order) << 1 : (0b100000 | order - 1) << 1, 8);
+            for (int i = 0; i < order; i++) bits.write(block[i], 16);
+            if (bestType >= 32) {
+                bits.write(LPC_PRECISION - 1, 4);
+                bits.write(shift, 5);
+                for (int coefficient : coefficients) bits.write(coefficient, LPC_PRECISION);
+            }
+            
+            // Partitioned Rice coding, 4-bit parameters
+            bits.write(0, 2);
+            bits.write(bestPartitionOrder, 4);
+            int partitions = 1 << bestPartitionOrder;
+            int length = n >> bestPartitionOrder;
+            for (int p = 0, i = order; p < partitions; p++) {
+                int parameter = bestRiceParameters[p];
+                bits.write(parameter, 4);
+                for (int end = (p + 1) * length; i < end; i++) bits.writeRice(bestResidual[i], parameter);
+            }
+        }
+        
+        private void keepBest() {
+            int[] swap = bestResidual;
+            bestResidual = residual;
+            residual = swap;
+            bestPartitionOrder = partitionOrder;
+            System.arraycopy(riceParameters, 0, bestRiceParameters, 0, 1 << partitionOrder);
+        }
+        
+        private void fixedResidual(int order, int n) {
+            int[] x = block;
+            for (int i = order; i < n; i++) {
+                switch (order) {
+                    case 0: residual[i] = x[i]; break;
+                    case 1: residual[i] = x[i] - x[i - 1]; break;
+                    case 2: residual[i] = x[i] - 2 * x[i - 1] + x[i - 2]; break;
+                    case 3: residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3]; break;
+                    default: residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4]; break;
+                }
+            }
+        }
+        
+        // Levinson-Durbin on the Welch-windowed autocorrelation, then quantizes the
+        // coefficients to LPC_PRECISION bits. Returns the shift, or -1 if no usable fit.
+        private int fitLpc(int n) {
+            double[] autocorrelation = new double[LPC_ORDER + 1];
+            double half = (n - 1) / 2.0;
+            for (int i = 0; i < n; i++) {
+                double w = (i - half) / (half + 1);
+                window[i] = block[i] * (1 - w * w);
+            }
+            for (int lag = 0; lag <= LPC_ORDER; lag++) {
+                double sum = 0;
+                for (int i = lag; i < n; i++) sum += window[i] * window[i - lag];
+                autocorrelation[lag] = sum;
+            }
+            if (autocorrelation[0] <= 0) return -1;
+            
+            double[] lpc = new double[LPC_ORDER];
+            double[] previous = new double[LPC_ORDER];
+            double error = autocorrelation[0];
+            for (int m = 0; m < LPC_ORDER; m++) {
+                double reflection = autocorrelation[m + 1];
+                for (int j = 0; j < m; j++) reflection -= lpc[j] * autocorrelation[m - j];
+                reflection /= error;
+                System.arraycopy(lpc, 0, previous, 0, m);
+                lpc[m] = reflection;
+                for (int j = 0; j < m; j++) lpc[j] = previous[j] - reflection * previous[m - 1 - j];
+                error *= 1 - reflection * reflection;
+                if (error <= 0) return -1;
+            }
+            
+            double largest = 0;
+            for (double c : lpc) largest = Math.max(largest, Math.abs(c));
+            if (largest == 0 || Double.isNaN(largest)) return -1;
+            int shift = LPC_PRECISION - 2 - Math.getExponent(largest);
+            if (shift < 0) return -1;
+            shift = Math.min(shift, 15);
+            int limit = (1 << LPC_PRECISION - 1) - 1;
+            double carry = 0;
+            for (int j = 0; j < LPC_ORDER; j++) {
+                double scaled = lpc[j] * (1 << shift) + carry;
+                int q = (int)Math.max(-limit - 1, Math.min(limit, Math.round(scaled)));
+                carry = scaled - q;
+                coefficients[j] = q;
+            }
+            return shift;
+        }
+        
+        private void lpcResidual(int shift, int n) {
+            int[] x = block;
+            int[] c = coefficients;
+            for (int i = LPC_ORDER; i < n; i++) {
+                long sum = 0;
+                for (int j = 0; j < LPC_ORDER; j++) sum += (long)c[j] * x[i - j - 1];
+                residual[i] = x[i] - (int)(sum >> shift);
+            }
+        }
+        
+        // Picks the partition order and per-partition parameters for residual[order..n)
+        // and returns the estimated size in bits, including the residual header
+        private long chooseRice(int order, int n) {
+            int maxOrder = 0;
+            while (maxOrder < MAX_PARTITION_ORDER && (n >> maxOrder + 1) << maxOrder + 1 == n
+                    && n >> maxOrder + 1 > order) {
+                maxOrder++;
+            }
+            int partitions = 1 << maxOrder;
+            int length = n >> maxOrder;
+            for (int p = 0, i = order; p < partitions; p++) {
+                long sum = 0;
+                for (int end = (p + 1) * length; i < end; i++) sum += residual[i] << 1 ^ residual[i] >> 31;
+                partitionSums[p] = sum;
+            }
+            
+            long best = Long.MAX_VALUE;
+            int[] parameters = scratchParameters;
+            for (int po = maxOrder; po >= 0; po--) {
+                int count = 1 << po;
+                long total = 6;
+                for (int p = 0; p < count; p++) {
+                    int samples = (n >> po) - (p == 0 ? order : 0);
+                    long sum = partitionSums[p];
+                    int parameter = 0;
+                    if (samples > 0 && sum > samples) {
+                        parameter = Math.min(MAX_RICE_PARAMETER, 63 - Long.numberOfLeadingZeros(sum / samples));
+                    }
+                    long cost = riceBits(sum, samples, parameter);
+                    if (parameter < MAX_RICE_PARAMETER && riceBits(sum, samples, parameter + 1) < cost) {
+                        cost = riceBits(sum, samples, ++parameter);
+                    }
+                    parameters[p] = parameter;
+                    total += 4 + cost;
+                }
+                if (total < best) {
+                    best = total;
+                    partitionOrder = po;
+                    System.arraycopy(parameters, 0, riceParameters, 0, count);
+                }
+                for (int p = 0; p < count / 2; p++) partitionSums[p] = partitionSums[2 * p] + partitionSums[2 * p + 1];
+            }
+            return best;
+        }
+        
+        private static long riceBits(long sum, int samples, int parameter) {
+            return (long)samples * (parameter + 1) + (sum >> parameter);
+        }
+        
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+    
+    // Streaming FLAC decoder producing 16-bit little-endian PCM a frame at a time. Reads
+    // mono 16-bit streams from any encoder: constant, verbatim, fixed and LPC subframes,
+    // wasted bits and both Rice parameter widths. Each frame's CRCs are checked, and at the
+    // end so is the stream info's MD5 and length, so a clean read proves a bit-exact decode.
+    static class FlacReader extends InputStream {
+        private final InputStream in;
+        private final long totalSamples;
+        private final byte[] expectedMd5;
+        private final MessageDigest md5;
+        private int[] samples;
+        private byte[] pcm = new byte[0];
+        private int pcmPosition;
+        private int pcmLength;
+        private long decoded;
+        private boolean finished;
+        
+        // Bit reader; bytes are fetched one at a time so both CRCs cover exactly what was read
+        private long cache;
+        private int cacheBits;
+        private int crc8;
+        private int crc16;
+        
+        private FlacReader(InputStream in, long totalSamples, int maxBlockSize, byte[] expectedMd5) {
+            this.in = in;
+            this.totalSamples = totalSamples;
+            this.expectedMd5 = expectedMd5;
+            this.samples = new int[Math.max(16, maxBlockSize)];
+            MessageDigest digest = null;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                // checksum is skipped
+            }
+            this.md5 = digest;
+        }
+        
+        public static AudioInputStream open(Path path) throws IOException {
+            InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16);
+            try {
+                DataInputStream data = new DataInputStream(in);
+                if (data.readInt() != 0x664c6143) throw new IOException("Not a FLAC file: " + path);
+                int sampleRate = 0;
+                long totalSamples = 0;
+                int maxBlockSize = 0;
+                byte[] digest = new byte[16];
+                boolean last;
+                do {
+                    int header = data.readInt();
+                    last = header < 0;
+                    int type = header >>> 24 & 0x7f;
+                    int length = header & 0xFFFFFF;
+                    if (type == 0) {
+                        data.readShort();
+                        maxBlockSize = data.readUnsignedShort();
+                        data.skipBytes(6);
+                        long packed = data.readLong();
+                        sampleRate = (int)(packed >>> 44);
+                        int channels = (int)(packed >>> 41 & 7) + 1;
+                        int bitsPerSample = (int)(packed >>> 36 & 31) + 1;
+                        if (channels != 1 || bitsPerSample != 16) {
+                            throw new IOException("Only 16-bit mono FLAC is supported: " + path);
+                        }
+                        totalSamples = packed & 0xFFFFFFFFFL;
+                        data.readFully(digest);
+                        data.skipBytes(length - FlacWriter.STREAM_INFO_SIZE);
+                    } else {
+                        while (length > 0) length -= data.skipBytes(length);
+                    }
+                } while (!last);
+                if (sampleRate == 0) throw new IOException("FLAC file has no stream info: " + path);
+                
+                FlacReader reader = new FlacReader(in, totalSamples, maxBlockSize, digest);
+                return new AudioInputStream(reader, new AudioFormat(sampleRate, 16, 1, true, false),
+                        totalSamples == 0 ? AudioSystem.NOT_SPECIFIED : totalSamples);
+            } catch (EOFException ex) {
+                in.close();
+                throw new IOException("Truncated FLAC header: " + path, ex);
+            } catch (IOException | RuntimeException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            while (pcmPosition == pcmLength) {
+                if (finished || !decodeFrame()) {
+                    finish();
+                    return -1;
+                }
+            }
+            int count = Math.min(length, pcmLength - pcmPosition);
+            System.arraycopy(pcm, pcmPosition, buffer, offset, count);
+            pcmPosition += count;
+            return count;
+        }
+        
+        @Override
+        public int available() { return pcmLength - pcmPosition; }
+        
+        @Override
+        public void close() throws IOException { in.close(); }
+        
+        private void finish() throws IOException {
+            if (finished) return;
+            finished = true;
+            if (totalSamples != 0 && decoded != totalSamples) {
+                throw new IOException("FLAC stream ended after " + decoded + " of " + totalSamples + " samples");
+            }
+            boolean hasDigest = false;
+            for (byte b : expectedMd5) hasDigest |= b != 0;
+            if (hasDigest && md5 != null && !MessageDigest.isEqual(md5.digest(), expectedMd5)) {
+                throw new IOException("FLAC MD5 mismatch, the decoded audio is not what was encoded");
+            }
+        }
+        
+        // Decodes the next frame into pcm; returns false at the end of the stream
+        private boolean decodeFrame() throws IOException {
+            crc8 = 0;
+            crc16 = 0;
+            int first = in.read();
+            if (first < 0) return false;
+            update(first);
+            int sync = first << 8 | nextByte();
+            if ((sync & 0xFFFE) != 0xFFF8) throw new IOException("Lost FLAC frame sync");
+            
+            int blockCode = readBits(4);
+            int rateCode = readBits(4);
+            int channels = readBits(4);
+            int sizeCode = readBits(3);
+            readBits(1);
+            if (channels != 0) throw new IOException("Only mono FLAC is supported");
+            if (sizeCode != 0b100 && sizeCode != 0) throw new IOException("Only 16-bit FLAC is supported");
+            
+            int lead = readBits(8); // coded frame or sample number
+            for (int extra = Integer.numberOfLeadingZeros(~lead << 24); extra > 1; extra--) readBits(8);
+            
+            int n;
+            if (blockCode == 1) n = 192;
+            else if (blockCode >= 2 && blockCode <= 5) n = 576 << blockCode - 2;
+            else if (blockCode == 6) n = readBits(8) + 1;
+            else if (blockCode == 7) n = readBits(16) + 1;
+            else if (blockCode >= 8) n = 256 << blockCode - 8;
+            else throw new IOException("Reserved FLAC block size");
+            if (rateCode == 0b1100) readBits(8);
+            else if (rateCode == 0b1101 || rateCode == 0b1110) readBits(16);
+            else if (rateCode == 0b1111) throw new IOException("Invalid FLAC sample rate");
+            
+            int expected = crc8;
+            if (readBits(8) != expected) throw new IOException("FLAC frame header CRC mismatch");
+            
+            if (samples.length < n) samples = new int[n];
+            decodeSubframe(n);
+            cacheBits = 0; // padding to the byte boundary
+            expected = crc16;
+            if (readBits(16) != expected) throw new IOException("FLAC frame CRC mismatch");
+            
+            if (pcm.length < 2 * n) pcm = new byte[2 * n];
+            for (int i = 0; i < n; i++) {
+                pcm[2 * i] = (byte)samples[i];
+                pcm[2 * i + 1] = (byte)(samples[i] >> 8);
+            }
+            if (md5 != null) md5.update(pcm, 0, 2 * n);
+            pcmPosition = 0;
+            pcmLength = 2 * n;
+            decoded += n;
+            return true;
+        }
+        
+        private void decodeSubframe(int n) throws IOException {
+            int[] x = samples;
+            if (readBits(1) != 0) throw new IOException("Bad FLAC subframe");
+            int type = readBits(6);
+            int wasted = 0;
+            if (readBits(1) == 1) wasted = readUnary() + 1;
+            int width = 16 - wasted;
+            
+            if (type == 0) {
+                Arrays.fill(x, 0, n, readSigned(width));
+            } else if (type == 1) {
+                for (int i = 0; i < n; i++) x[i] = readSigned(width);
+            } else if (type >= 8 && type <= 12) {
+                int order = type - 8;
+                for (int i = 0; i < order; i++) x[i] = readSigned(width);
+                readResidual(order, n);
+                for (int i = order; i < n; i++) {
+                    switch (order) {
+                        case 0: break;
+                        case 1: x[i] += x[i - 1]; break;
+                        case 2: x[i] += 2 * x[i - 1] - x[i - 2]; break;
+                        case 3: x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3]; break;
+                        default: x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4]; break;
+                    }
+                }
+            } else if (type >= 32) {
+                int order = type - 31;
+                for (int i = 0; i < order; i++) x[i] = readSigned(width);
+                int precision = readBits(4) + 1;
+                if (precision == 16) throw new IOException("Invalid FLAC LPC precision");
+                int shift = readSigned(5);
+                if (shift < 0) throw new IOException("Negative FLAC LPC shift");
+                int[] c = new int[order];
+                for (int j = 0; j < order; j++) c[j] = readSigned(precision);
+                readResidual(order, n);
+                for (int i = order; i < n; i++) {
+                    long sum = 0;
+                    for (int j = 0; j < order; j++) sum += (long)c[j] * x[i - j - 1];
+                    x[i] += (int)(sum >> shift);
+                }
+            } else {
+                throw new IOException("Reserved FLAC subframe type " + type);
+            }
+            if (wasted > 0) {
+                for (int i = 0; i < n; i++) x[i] <<= wasted;
+            }
+        }
+        
+        // Reads the residual for samples[order..n) into place
+        private void readResidual(int order, int n) throws IOException {
+            int method = readBits(2);
+            if (method > 1) throw new IOException("Reserved FLAC residual coding");
+            int parameterBits = method == 0 ? 4 : 5;
+            int escape = (1 << parameterBits) - 1;
+            int partitionOrder = readBits(4);
+            int length = n >> partitionOrder;
+            if (length << partitionOrder != n || length < order) throw new IOException("Bad FLAC partition order");
+            for (int p = 0, i = order; p < 1 << partitionOrder; p++) {
+                int parameter = readBits(parameterBits);
+                int end = (p + 1) * length;
+                if (parameter == escape) {
+                    int width = readBits(5);
+                    for (; i < end; i++) samples[i] = width == 0 ? 0 : readSigned(width);
+                } else {
+                    for (; i < end; i++) {
+                        int folded = readUnary() << parameter | readBits(parameter);
+                        samples[i] = folded >>> 1 ^ -(folded & 1);
+                    }
+                }
+            }
+        }
+        
+        private int nextByte() throws IOException {
+            int b = in.read();
+            if (b < 0) throw new EOFException("Truncated FLAC frame");
+            update(b);
+            return b;
+        }
+        
+        private void update(int b) {
+            crc8 = FlacCrc.CRC8[crc8 ^ b];
+            crc16 = (crc16 << 8 ^ FlacCrc.CRC16[crc16 >>> 8 ^ b]) & 0xffff;
+        }
+        
+        private int readBits(int count) throws IOException {
+            if (count == 0) return 0;
+            while (cacheBits < count) {
+                cache = cache << 8 | nextByte();
+                cacheBits += 8;
+            }
+            cacheBits -= count;
+            return (int)(cache >>> cacheBits & (1L << count) - 1);
+        }
+        
+        private int readSigned(int count) throws IOException {
+            return readBits(count) << 32 - count >> 32 - count;
+        }
+        
+        // Number of zero bits before the next one bit
+        private int readUnary() throws IOException {
+            int zeros = 0;
+            while (true) {
+                if (cacheBits == 0) {
+                    cache = nextByte();
+                    cacheBits = 8;
+                }
+                long valid = cache & (1L << cacheBits) - 1;
+                if (valid == 0) {
+                    zeros += cacheBits;
+                    cacheBits = 0;
+                    continue;
+                }
+                int skip = cacheBits - (64 - Long.numberOfLeadingZeros(valid));
+                zeros += skip;
+                cacheBits -= skip + 1;
+                return zeros;
+            }
+        }
+    }
+    
+    // IMA ADPCM as stored in WAV files (format tag 0x11): each block starts with an exact
+    // sample and the step index, followed by 4-bit codes, two per byte, low nibble first.
+    // Encoder and decoder share step(), so the encoder's prediction is exactly what a
+    // decoder will produce.
+    static final class ImaAdpcm {
+        static final int BLOCK_ALIGN = 1024;
+        static final int SAMPLES_PER_BLOCK = (BLOCK_ALIGN - 4) * 2 + 1;
+        private static final int[] STEPS = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66,
+            73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371, 408,
+            449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630,
+            9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+        };
+        private static final int[] INDEX_CHANGES = {-1, -1, -1, -1, 2, 4, 6, 8};
+        
+        private ImaAdpcm() {}
+        
+        // Encodes count samples (1 to SAMPLES_PER_BLOCK) into out and returns its length in
+        // bytes. state[0] carries the step index from block to block.
+        static int encodeBlock(short[] samples, int offset, int count, int[] state, byte[] out) {
+            int predictor = samples[offset];
+            int index = state[0];
+            out[0] = (byte)predictor;
+            out[1] = (byte)(predictor >> 8);
+            out[2] = (byte)index;
+            out[3] = 0;
+            int[] decoder = {predictor, index};
+            for (int i = 1; i < count; i++) {
+                int difference = samples[offset + i] - decoder[0];
+                int step = STEPS[decoder[1]];
+                int code = 0;
+                if (difference < 0) {
+                    code = 8;
+                    difference = -difference;
+                }
+                if (difference >= step) { code |= 4; difference -= step; }
+                if (difference >= step >> 1) { code |= 2; difference -= step >> 1; }
+                if (difference >= step >> 2) code |= 1;
+                step(code, decoder);
+                int at = 4 + (i - 1) / 2;
+                out[at] = (i & 1) == 1 ? (byte)code : (byte)(out[at] | code << 4);
+            }
+            state[0] = decoder[1];
+            return 4 + count / 2;
+        }
+        
+        // Decodes a block of the given sample count
+        static void decodeBlock(byte[] in, int count, short[] out, int offset) {
+            int[] decoder = {(short)(in[0] & 0xff | in[1] << 8), Math.min(88, in[2] & 0xff)};
+            out[offset] = (short)decoder[0];
+            for (int i = 1; i < count; i++) {
+                int b = in[4 + (i - 1) / 2];
+                out[offset + i] = (short)step((i & 1) == 1 ? b & 0x0f : b >> 4 & 0x0f, decoder);
+            }
+        }
+        
+        // Applies one code to {predictor, index} and returns the new predictor
+        private static int step(int code, int[] state) {
+            int step = STEPS[state[1]];
+            int delta = step >> 3;
+            if ((code & 4) != 0) delta += step;
+            if ((code & 2) != 0) delta += step >> 1;
+            if ((code & 1) != 0) delta += step >> 2;
+            int predictor = state[0] + ((code & 8) != 0 ? -delta : delta);
+            state[0] = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+            state[1] = Math.max(0, Math.min(STEPS.length - 1, state[1] + INDEX_CHANGES[code & 7]));
+            return state[0];
+        }
+    }
+    
+    // Streaming IMA ADPCM WAV writer, about 4:1 against 16-bit PCM. Lossy, for takes that
+    // only need to be auditioned; samples are encoded a block at a time as they arrive.
+    static class AdpcmWriter implements SampleWriter {
+        static final short FORMAT_TAG = 0x0011;
+        static final int HEADER_SIZE = 60;
+        
+        private final FileChannel channel;
+        private final int sampleRate;
+        private final short[] pending = new short[ImaAdpcm.SAMPLES_PER_BLOCK];
+        private final byte[] encoded = new byte[ImaAdpcm.BLOCK_ALIGN];
+        private final int[] state = new int[1];
+        private int filled;
+        private long frames;
+        private long dataSize;
+        private PeakSummary.Builder peaks;
+        
+        public AdpcmWriter(Path path, int sampleRate) throws IOException {
+            this.sampleRate = sampleRate;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            writeFully(header());
+        }
+        
+        @Override
+        public void write(short[] samples, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                pending[filled++] = samples[i];
+                if (filled == pending.length) flushBlock();
+            }
+            frames += count;
+            if (peaks != null) peaks.add(samples, count);
+        }
+        
+        @Override public void setPeaks(PeakSummary.Builder peaks) { this.peaks = peaks; }
+        @Override public long getFrames() { return frames; }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                if (filled > 0) flushBlock();
+                if ((dataSize & 1) != 0) writeFully(ByteBuffer.wrap(new byte[1])); // RIFF pad byte
+                channel.position(0);
+                writeFully(header());
+            } finally {
+                channel.close();
+            }
+        }
+        
+        private void flushBlock() throws IOException {
+            int length = ImaAdpcm.encodeBlock(pending, 0, filled, state, encoded);
+            filled = 0;
+            writeFully(ByteBuffer.wrap(encoded, 0, length));
+            dataSize += length;
+        }
+        
+        private ByteBuffer header() {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0x46464952).putInt((int)(HEADER_SIZE - 8 + dataSize + (dataSize & 1))).putInt(0x45564157);
+            header.putInt(0x20746d66).putInt(20);
+            header.putShort(FORMAT_TAG).putShort((short)1).putInt(sampleRate);
+            header.putInt((int)((long)sampleRate * ImaAdpcm.BLOCK_ALIGN / ImaAdpcm.SAMPLES_PER_BLOCK));
+            header.putShort((short)ImaAdpcm.BLOCK_ALIGN).putShort((short)4);
+            header.putShort((short)2).putShort((short)ImaAdpcm.SAMPLES_PER_BLOCK);
+            header.putInt(0x74636166).putInt(4).putInt((int)frames); // "fact"
+            header.putInt(0x61746164).putInt((int)dataSize);
+            header.flip();
+            return header;
+        }
+        
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+    
+    // Decodes a mono IMA ADPCM WAV to 16-bit little-endian PCM one block at a time
+    static class AdpcmReader extends InputStream {
+        private final DataInputStream in;
+        private final int blockAlign;
+        private final int samplesPerBlock;
+        private long remainingBytes;
+        private long remainingSamples;
+        private final byte[] block;
+        private final short[] samples;
+        private final byte[] pcm;
+        private int pcmPosition;
+        private int pcmLength;
+        
+        private AdpcmReader(DataInputStream in, int blockAlign, int samplesPerBlock, long dataSize, long totalSamples) {
+            this.in = in;
+            this.blockAlign = blockAlign;
+            this.samplesPerBlock = samplesPerBlock;
+            this.remainingBytes = dataSize;
+            this.remainingSamples = totalSamples;
+            this.block = new byte[blockAlign];
+            this.samples = new short[samplesPerBlock];
+            this.pcm = new byte[samplesPerBlock * 2];
+        }
+        
+        public static AudioInputStream open(Path path) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+            try {
+                in.skipBytes(12);
+                int sampleRate = 0;
+                int blockAlign = 0;
+                int samplesPerBlock = 0;
+                long totalSamples = -1;
+                while (true) {
+                    int id = Integer.reverseBytes(in.readInt());
+                    long size = Integer.reverseBytes(in.readInt()) & 0xFFFFFFFFL;
+                    if (id == 0x20746d66) { // "fmt "
+                        int tag = Short.reverseBytes(in.readShort());
+                        int channels = Short.reverseBytes(in.readShort());
+                        sampleRate = Integer.reverseBytes(in.readInt());
+                        in.readInt();
+                        blockAlign = Short.reverseBytes(in.readShort()) & 0xffff;
+                        int bits = Short.reverseBytes(in.readShort());
+                        if (tag != AdpcmWriter.FORMAT_TAG || channels != 1 || bits != 4 || size < 20 || blockAlign <= 4) {
+                            throw new IOException("Only mono 4-bit IMA ADPCM is supported: " + path);
+                        }
+                        in.readShort();
+                        samplesPerBlock = Short.reverseBytes(in.readShort()) & 0xffff;
+                        if (samplesPerBlock != (blockAlign - 4) * 2 + 1) throw new IOException("Bad ADPCM block size");
+                        skipFully(in, size - 20 + (size & 1));
+                    } else if (id == 0x74636166) { // "fact"
+                        totalSamples = Integer.reverseBytes(in.readInt()) & 0xFFFFFFFFL;
+                        skipFully(in, size - 4 + (size & 1));
+                    } else if (id == 0x61746164) { // "data"
+                        if (blockAlign == 0) throw new IOException("ADPCM data before format: " + path);
+                        long maxSamples = size / blockAlign * samplesPerBlock
+                                + (size % blockAlign == 0 ? 0 : 1 + (size % blockAlign - 4) * 2);
+                        if (totalSamples < 0 || totalSamples > maxSamples) totalSamples = Math.max(0, maxSamples);
+                        AdpcmReader reader = new AdpcmReader(in, blockAlign, samplesPerBlock, size, totalSamples);
+                        return new AudioInputStream(reader, new AudioFormat(sampleRate, 16, 1, true, false), totalSamples);
+                    } else {
+                        skipFully(in, size + (size & 1));
+                    }
+                }
+            } catch (EOFException ex) {
+                in.close();
+                throw new IOException("Truncated ADPCM header: " + path, ex);
+            } catch (IOException | RuntimeException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (pcmPosition == pcmLength && !decodeBlock()) return -1;
+            int count = Math.min(length, pcmLength - pcmPosition);
+            System.arraycopy(pcm, pcmPosition, buffer, offset, count);
+            pcmPosition += count;
+            return count;
+        }
+        
+        @Override
+        public int available() { return pcmLength - pcmPosition; }
+        
+        @Override
+        public void close() throws IOException { in.close(); }
+        
+        private boolean decodeBlock() throws IOException {
+            if (remainingSamples <= 0 || remainingBytes < 4) return false;
+            int bytes = (int)Math.min(blockAlign, remainingBytes);
+            in.readFully(block, 0, bytes);
+            remainingBytes -= bytes;
+            int count = (int)Math.min(remainingSamples, Math.min(samplesPerBlock, 1 + (bytes - 4) * 2L));
+            ImaAdpcm.decodeBlock(block, count, samples, 0);
+            remainingSamples -= count;
+            for (int i = 0; i < count; i++) {
+                pcm[2 * i] = (byte)samples[i];
+                pcm[2 * i + 1] = (byte)(samples[i] >> 8);
+            }
+            pcmPosition = 0;
+            pcmLength = 2 * count;
+            return true;
+        }
+        
+        private static void skipFully(DataInputStream in, long bytes) throws IOException {
+            while (bytes > 0) {
+                int skipped = in.skipBytes((int)Math.min(bytes, Integer.MAX_VALUE));
+                if (skipped <= 0) throw new EOFException();
+                bytes -= skipped;
+            }
+        }
+    }
+    
+    // Destination for rendered 16-bit mono audio, written block by block
+    interface SampleWriter extends Closeable {
+        void write(short[] samples, int count) throws IOException;
+        
+        // Optional; receives every sample written
+        void setPeaks(PeakSummary.Builder peaks);
+        
+        long getFrames();
+    }
+    
+    // Streams 16-bit PCM to a WAV file through a FileChannel.
+    // A placeholder header is written up front and patched with the real sizes on close.
+    static class WavWriter implements SampleWriter {
+        static final int HEADER_SIZE = 44;
+        
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final int sampleRate;
+        private final int bitsPerSample;
+        private final int channels;
+        private long dataSize;
+        private long frames;
+        private PeakSummary.Builder peaks;
+        
+        public WavWriter(String filename, int sampleRate, int bitsPerSample, int channels, 
+                         int blockFrames) throws IOException {
+            this.sampleRate = sampleRate;
+            this.bitsPerSample = bitsPerSample;
+            this.channels = channels;
+            this.buffer = ByteBuffer.allocateDirect(blockFrames * channels * bitsPerSample / 8)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            writeWavHeader(channel, sampleRate, bitsPerSample, channels, 0);
+            channel.position(HEADER_SIZE);
+        }
+        
+        public void write(short[] samples, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                if (buffer.remaining() < 2) {
+                    flush();
+                }
+                buffer.putShort(samples[i]);
+            }
+            frames += count / channels;
+            if (peaks != null) peaks.add(samples, count);
+        }
+        
+        @Override
+        public void setPeaks(PeakSummary.Builder peaks) { this.peaks = peaks; }
+        
+        @Override
+        public long getFrames() { return frames; }
+        
+        public long getDataSize() { return dataSize; }
+        
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                dataSize += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                writeWavHeader(channel, sampleRate, bitsPerSample, channels, dataSize);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+    
+    // Read-only, index-addressed view of recorded events
+    interface EventSource {
+        int size();
+        byte getType(int i);
+        int getChannel(int i);
+        int getNote(int i);
+        int getVelocity(int i);
+        long getTime(int i);
+    }
+    
+    // Append-only event log for recordings. Events are stored column-wise in primitive
+    // chunks instead of one object each. Any number of threads may append without locking
+    // or waiting; readers see a consistent prefix of the log through size().
+    static class EventLog implements EventSource {
+        public static final byte NOTE_ON = 0;
+        public static final byte NOTE_OFF = 1;
+        
+        private static final int CHUNK_BITS = 14;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+        private static final int MAX_CHUNKS = 1 << 14;
+        
+        private final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+        private final AtomicLong reserved = new AtomicLong();
+        private final AtomicLong committed = new AtomicLong();
+        
+        private static final class Chunk {
+            final byte[] types = new byte[CHUNK_SIZE];
+            final byte[] channels = new byte[CHUNK_SIZE];
+            final byte[] notes = new byte[CHUNK_SIZE];
+            final byte[] velocities = new byte[CHUNK_SIZE];
+            final long[] times = new long[CHUNK_SIZE];
+            final AtomicIntegerArray published = new AtomicIntegerArray(CHUNK_SIZE);
+        }
+        
+        public void append(byte type, int note, int velocity, long time) {
+            append(type, 0, note, velocity, time);
+        }
+        
+        public void append(byte type, int channel, int note, int velocity, long time) {
+            long index = reserved.getAndIncrement();
+            int chunkIndex = (int)(index >>> CHUNK_BITS);
+            if (chunkIndex >= MAX_CHUNKS) {
+                throw new IllegalStateException("Event log is full");
+            }
+            
+            Chunk chunk = chunks.get(chunkIndex);
+            if (chunk == null) {
+                chunks.compareAndSet(chunkIndex, null, new Chunk());
+                chunk = chunks.get(chunkIndex);
+            }
+            
+            int slot = (int)index & (CHUNK_SIZE - 1);
+            chunk.types[slot] = type;
+            chunk.channels[slot] = (byte)(channel & 0x0f);
+            chunk.notes[slot] = (byte)note;
+            chunk.velocities[slot] = (byte)Math.min(127, Math.max(0, velocity));
+            chunk.times[slot] = time;
+            chunk.published.lazySet(slot, 1);
+        }
+        
+        // Number of events visible to readers; indices below this are safe to read.
+        // Extends the visible prefix over every slot whose writer has finished.
+        public int size() {
+            long start = committed.get();
+            long end = reserved.get();
+            long visible = start;
+            while (visible < end) {
+                Chunk chunk = chunks.get((int)(visible >>> CHUNK_BITS));
+                if (chunk == null || chunk.published.get((int)visible & (CHUNK_SIZE - 1)) == 0) break;
+                visible++;
+            }
+            while (visible > start && !committed.compareAndSet(start, visible)) {
+                start = committed.get();
+            }
+            return (int)Math.max(visible, start);
+        }
+        public boolean isEmpty() { return size() == 0; }
+        
+        public byte getType(int i) { return chunk(i).types[i & (CHUNK_SIZE - 1)]; }
+        public int getChannel(int i) { return chunk(i).channels[i & (CHUNK_SIZE - 1)]; }
+        public int getNote(int i) { return chunk(i).notes[i & (CHUNK_SIZE - 1)]; }
+        public int getVelocity(int i) { return chunk(i).velocities[i & (CHUNK_SIZE - 1)]; }
+        public long getTime(int i) { return chunk(i).times[i & (CHUNK_SIZE - 1)]; }
+        
+        private Chunk chunk(int i) { return chunks.get(i >>> CHUNK_BITS); }
     }
 }
\ No newline at end of file
@@ -0,0 +1,8 @@
+#!/bin/sh
+# Compiles VP_DAW.java if needed and runs it with the synthesizer's offline stream enabled.
+# Arguments are passed through, e.g. ./run.sh --render takes/ out/
+cd "$(dirname "$0")" || exit 1
+if [ ! -f VP_DAW.class ] || [ VP_DAW.java -nt VP_DAW.class ]; then
+    javac -encoding UTF-8 VP_DAW.java || exit 1
+fi
+exec java --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED VP_DAW "$@"